@@ -0,0 +1,239 @@
+package org.zkoss.common.zcommon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleReference;
+import org.zkoss.lang.Classes;
+
+/**
+ * The entries referencing a class of a bundle, by their key or by their value,
+ * must be dropped when the bundle changes, so the class loader of the old
+ * revision is not kept.
+ *
+ * @author Mirko Bernardoni <mirko.bernardoniATgmail.com>
+ *
+ */
+public class BundleClassCacheTest {
+
+	/** The superclass, loaded by the base bundle */
+	public static class Base {
+		private String name;
+
+		public Base() {
+		}
+
+		public Base(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public void setName(String name) {
+			this.name = name;
+		}
+	}
+
+	/** The class of the pages, loaded by the page bundle */
+	public static class Page extends Base {
+		public Page() {
+		}
+	}
+
+	/** A value referencing classes */
+	private static class Referencing implements BundleClassCache.Key {
+		private final Class<?> cls;
+
+		private Referencing(Class<?> cls) {
+			this.cls = cls;
+		}
+
+		@Override
+		public Class<?>[] getClasses() {
+			return new Class<?>[] { cls };
+		}
+	}
+
+	/** A key referencing no class */
+	private static class Name implements BundleClassCache.Key {
+		private final String name;
+
+		private Name(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Class<?>[] getClasses() {
+			return new Class<?>[0];
+		}
+
+		@Override
+		public int hashCode() {
+			return name.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Name && ((Name) o).name.equals(name);
+		}
+	}
+
+	/** The loader of a bundle, defining its own copy of some classes */
+	private static class BundleLoader extends ClassLoader implements
+			BundleReference {
+		private final Bundle bundle;
+		private final String[] names;
+
+		private BundleLoader(ClassLoader parent, Bundle bundle,
+				String... names) {
+			super(parent);
+			this.bundle = bundle;
+			this.names = names;
+		}
+
+		@Override
+		public Bundle getBundle() {
+			return bundle;
+		}
+
+		@Override
+		protected synchronized Class<?> loadClass(String name, boolean resolve)
+				throws ClassNotFoundException {
+			for (String own : names) {
+				if (own.equals(name)) {
+					Class<?> cls = findLoadedClass(name);
+					return cls != null ? cls : define(name);
+				}
+			}
+			return super.loadClass(name, resolve);
+		}
+
+		private Class<?> define(String name) throws ClassNotFoundException {
+			InputStream in = BundleClassCacheTest.class.getClassLoader()
+					.getResourceAsStream(name.replace('.', '/') + ".class");
+			if (in == null) {
+				throw new ClassNotFoundException(name);
+			}
+			try {
+				try {
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					byte[] buf = new byte[4096];
+					for (int n; (n = in.read(buf)) >= 0;) {
+						out.write(buf, 0, n);
+					}
+					byte[] bytes = out.toByteArray();
+					return defineClass(name, bytes, 0, bytes.length);
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				throw new ClassNotFoundException(name, e);
+			}
+		}
+	}
+
+	private Bundle baseBundle;
+	private Bundle pageBundle;
+	private Class<?> base;
+	private Class<?> page;
+
+	@Before
+	public void setUp() throws Exception {
+		baseBundle = Bundles.newBundle(1);
+		pageBundle = Bundles.newBundle(2);
+		ClassLoader baseLoader = new BundleLoader(getClass().getClassLoader(),
+				baseBundle, Base.class.getName());
+		ClassLoader pageLoader = new BundleLoader(baseLoader, pageBundle,
+				Page.class.getName());
+		base = baseLoader.loadClass(Base.class.getName());
+		page = pageLoader.loadClass(Page.class.getName());
+	}
+
+	@Test
+	public void entriesAreDroppedByValue() throws Exception {
+		BundleClassCache<Name, Object> cache = new BundleClassCache<Name, Object>(
+				"test", 64, 60000);
+		Method getName = base.getMethod("getName");
+		cache.put(new Name("class"), base);
+		cache.put(new Name("member"), getName);
+		cache.put(new Name("array"), new Method[] { page.getMethod("getName") });
+		cache.put(new Name("key"), new Referencing(base));
+		cache.put(new Name("other"), String.class);
+		BundleClassCache.removeAll(pageBundle);
+		assertEquals(5, cache.size());
+		BundleClassCache.removeAll(baseBundle);
+		assertNull(cache.get(new Name("class")));
+		assertNull(cache.get(new Name("member")));
+		assertNull(cache.get(new Name("array")));
+		assertNull(cache.get(new Name("key")));
+		assertNotNull(cache.get(new Name("other")));
+	}
+
+	@Test
+	public void accessorOfASuperclassIsDropped() throws Exception {
+		Classes.getGetter(page, "name");
+		Classes.getSetter(page, "name", String.class);
+		assertDropped("org.zkoss.lang.Classes.accessors", 2);
+	}
+
+	@Test
+	public void matchedMethodOfASuperclassIsDropped() throws Exception {
+		Classes.getMethodByObject(page, "setName", new Object[] { "a" });
+		assertDropped("org.zkoss.lang.Classes.matchedMethods", 1);
+	}
+
+	@Test
+	public void closeMethodsOfASuperclassAreDropped() throws Exception {
+		Classes.getCloseMethods(page, "setName",
+				new Class<?>[] { String.class });
+		assertDropped("org.zkoss.lang.Classes.closeMethods", 1);
+	}
+
+	@Test
+	public void signatureIsResolvedForEachBundle() throws Exception {
+		BundleClassCache<?, ?> cache = getCache("org.zkoss.lang.Classes.signatureMethods");
+		Bundle old = Activator.setRequestingBundle(baseBundle);
+		try {
+			Classes.getMethodBySignature(page, "setName(String)", null);
+			int size = cache.size();
+			Classes.getMethodBySignature(page, "setName(String)", null);
+			assertEquals(size, cache.size());
+			Activator.setRequestingBundle(pageBundle);
+			Classes.getMethodBySignature(page, "setName(String)", null);
+			assertEquals(size + 1, cache.size());
+		} finally {
+			Activator.setRequestingBundle(old);
+		}
+	}
+
+	/**
+	 * Check that the entries added for the page class are dropped with the
+	 * bundle of its superclass, which declares their members
+	 */
+	private void assertDropped(String name, int added) {
+		BundleClassCache<?, ?> cache = getCache(name);
+		int size = cache.size();
+		BundleClassCache.removeAll(baseBundle);
+		assertEquals(name, size - added, cache.size());
+	}
+
+	private static BundleClassCache<?, ?> getCache(String name) {
+		for (BundleClassCache<?, ?> cache : BundleClassCache.getCaches()) {
+			if (cache.getName().equals(name)) {
+				return cache;
+			}
+		}
+		throw new AssertionError(name + " not found");
+	}
+}
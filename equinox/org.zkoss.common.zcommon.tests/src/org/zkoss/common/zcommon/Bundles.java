@@ -0,0 +1,86 @@
+package org.zkoss.common.zcommon;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+
+/**
+ * Bundles for the tests, answering only what the caches ask.
+ *
+ * @author Mirko Bernardoni <mirko.bernardoniATgmail.com>
+ *
+ */
+class Bundles {
+
+	/** The resources of a bundle, asked to the test */
+	interface Resources {
+		URL getResource(Bundle bundle, String name);
+	}
+
+	private Bundles() {
+	}
+
+	static Bundle newBundle(long id) {
+		return newBundle(id, null);
+	}
+
+	/**
+	 *
+	 * @param id
+	 *            the bundle id
+	 * @param resources
+	 *            the resources of the bundle, or null if it has none
+	 */
+	static Bundle newBundle(final long id, final Resources resources) {
+		return (Bundle) Proxy.newProxyInstance(Bundles.class.getClassLoader(),
+				new Class<?>[] { Bundle.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						String name = method.getName();
+						if ("getBundleId".equals(name)) {
+							return id;
+						} else if ("getResource".equals(name)) {
+							return resources == null ? null : resources
+									.getResource((Bundle) proxy,
+											(String) args[0]);
+						} else if ("hashCode".equals(name)) {
+							return (int) id;
+						} else if ("equals".equals(name)) {
+							return proxy == args[0];
+						} else if ("toString".equals(name)) {
+							return "bundle " + id;
+						}
+						return null;
+					}
+				});
+	}
+
+	/** A context listing the given bundles, in the order of the array */
+	static BundleContext newContext(final Bundle[] bundles) {
+		return (BundleContext) Proxy.newProxyInstance(Bundles.class
+				.getClassLoader(), new Class<?>[] { BundleContext.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						return "getBundles".equals(method.getName()) ? bundles
+								.clone() : null;
+					}
+				});
+	}
+
+	/** Create a URL that can't be opened, to tell the resources apart */
+	static URL newURL(String name) {
+		try {
+			return new URL("file:/" + name);
+		} catch (MalformedURLException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package org.zkoss.common.zcommon;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.osgi.framework.BundleEvent;
+import org.zkoss.util.MultiCache;
+
+/**
+ * The misses recorded by a lookup must not survive a bundle change that
+ * happened during the lookup.
+ *
+ * @author Mirko Bernardoni <mirko.bernardoniATgmail.com>
+ *
+ */
+public class ClassMissCacheTest {
+
+	@Test
+	public void missIsRemembered() {
+		ClassMissCache cache = new ClassMissCache();
+		cache.addMissing("a.B", cache.getGeneration());
+		assertTrue(cache.isMissing("a.B"));
+		assertFalse(cache.isMissing("a.C"));
+	}
+
+	@Test
+	public void bundleEventClears() {
+		ClassMissCache cache = new ClassMissCache();
+		cache.addMissing("a.B", cache.getGeneration());
+		cache.bundleChanged(new BundleEvent(BundleEvent.INSTALLED, Bundles
+				.newBundle(1)));
+		assertFalse(cache.isMissing("a.B"));
+	}
+
+	@Test
+	public void missOfAnOlderGenerationIsIgnored() {
+		ClassMissCache cache = new ClassMissCache();
+		int generation = cache.getGeneration();
+		cache.clear(); // a bundle was installed during the lookup
+		cache.addMissing("a.B", generation);
+		assertFalse(cache.isMissing("a.B"));
+	}
+
+	@Test
+	public void missPutDuringAClearIsDropped() {
+		final ClassMissCache[] cache = new ClassMissCache[1];
+		cache[0] = new ClassMissCache(new MultiCache<String, Boolean>(1, 16,
+				60000) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public Boolean put(String key, Boolean value) {
+				cache[0].clear(); // a bundle is installed before the put
+				return super.put(key, value);
+			}
+		});
+		cache[0].addMissing("a.B", cache[0].getGeneration());
+		assertFalse(cache[0].isMissing("a.B"));
+	}
+}
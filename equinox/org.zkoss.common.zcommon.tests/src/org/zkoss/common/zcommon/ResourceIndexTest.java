@@ -0,0 +1,106 @@
+package org.zkoss.common.zcommon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.net.URL;
+
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+
+/**
+ * The resources found by a lookup must not be kept if a bundle changed during
+ * the lookup, and the ones of a changed bundle must be searched again.
+ *
+ * @author Mirko Bernardoni <mirko.bernardoniATgmail.com>
+ *
+ */
+public class ResourceIndexTest {
+
+	private static final String NAME = "metainfo/zk/lang.xml";
+
+	private int lookups;
+	private ResourceIndex index;
+	private URL found;
+	/** The event sent while the next lookup runs, or null */
+	private BundleEvent during;
+
+	private ResourceIndex newIndex(Bundle... bundles) {
+		index = new ResourceIndex(Bundles.newContext(bundles));
+		return index;
+	}
+
+	private Bundle newBundle(long id) {
+		return Bundles.newBundle(id, new Bundles.Resources() {
+			@Override
+			public URL getResource(Bundle bundle, String name) {
+				lookups++;
+				if (during != null) {
+					BundleEvent event = during;
+					during = null;
+					index.bundleChanged(event);
+				}
+				return found;
+			}
+		});
+	}
+
+	@Test
+	public void resourceIsKept() {
+		found = Bundles.newURL("a");
+		newIndex(newBundle(1));
+		assertSame(found, index.getResource(NAME));
+		assertSame(found, index.getResource(NAME));
+		assertEquals(1, lookups);
+	}
+
+	@Test
+	public void missIsKeptUntilABundleIsInstalled() {
+		Bundle bundle = newBundle(1);
+		newIndex(bundle);
+		assertNull(index.getResource(NAME));
+		assertNull(index.getResource(NAME));
+		assertEquals(1, lookups);
+		index.bundleChanged(new BundleEvent(BundleEvent.INSTALLED, Bundles
+				.newBundle(2)));
+		found = Bundles.newURL("a");
+		assertSame(found, index.getResource(NAME));
+		assertEquals(2, lookups);
+	}
+
+	@Test
+	public void missFoundDuringABundleChangeIsNotKept() {
+		newIndex(newBundle(1));
+		during = new BundleEvent(BundleEvent.INSTALLED, Bundles.newBundle(2));
+		assertNull(index.getResource(NAME));
+		found = Bundles.newURL("a");
+		assertSame(found, index.getResource(NAME));
+		assertEquals(2, lookups);
+	}
+
+	@Test
+	public void resourceFoundDuringABundleChangeIsNotKept() {
+		Bundle bundle = newBundle(1);
+		newIndex(bundle);
+		found = Bundles.newURL("a");
+		during = new BundleEvent(BundleEvent.UPDATED, bundle);
+		assertSame(found, index.getResource(NAME));
+		found = Bundles.newURL("b");
+		assertSame(found, index.getResource(NAME));
+		assertEquals(2, lookups);
+	}
+
+	@Test
+	public void resourceOfAChangedBundleIsSearchedAgain() {
+		Bundle bundle = newBundle(1);
+		newIndex(bundle);
+		found = Bundles.newURL("a");
+		index.getResource(NAME);
+		index.bundleChanged(new BundleEvent(BundleEvent.UPDATED, bundle));
+		found = Bundles.newURL("b");
+		assertSame(found, index.getResource(NAME));
+		assertEquals(2, lookups);
+	}
+}
@@ -0,0 +1,129 @@
+package org.zkoss.osgi.benchmark;
+
+import java.math.BigDecimal;
+
+import org.zkoss.lang.Classes;
+
+/**
+ * Measure Classes.coerce on a grid of cells, the way data binding converts
+ * the values of a large grid: each column converts its values to a type,
+ * e.g. the strings typed by the user to int or the numbers of the model to
+ * BigDecimal. For each column the average time of a coerced value is
+ * printed, then the one of the whole grid.
+ * <p>
+ * zcommon doesn't need to be started, so it runs as a Java application with
+ * zcommon and the OSGi framework in the class path:
+ *
+ * <pre>
+ * java -cp bin:../bundles-zk6/org.zkoss.common.zcommon_6.0.0.jar:../bundles/org.eclipse.osgi_3.7.1.R37x_v20110808-1106.jar
+ *     org.zkoss.osgi.benchmark.CoerceBenchmark [-rows 1000] [-time millis]
+ * </pre>
+ *
+ * @author Mirko Bernardoni <mirko.bernardoniATgmail.com>
+ *
+ */
+public class CoerceBenchmark {
+
+	/** A column: the values of the rows and the type they are coerced to */
+	private static class Column {
+		private final String name;
+		private final Class<?> type;
+		private final Object[] values;
+
+		private Column(String name, Class<?> type, Object[] values) {
+			this.name = name;
+			this.type = type;
+			this.values = values;
+		}
+	}
+
+	private final Column[] columns;
+	private final long millis;
+	/** Let the results escape, so the coercions are not optimized away */
+	private Object last;
+
+	private CoerceBenchmark(int rows, long millis) {
+		this.millis = millis;
+		Object[] ints = new Object[rows];
+		Object[] longs = new Object[rows];
+		Object[] doubles = new Object[rows];
+		Object[] strings = new Object[rows];
+		Object[] decimalStrings = new Object[rows];
+		Object[] booleans = new Object[rows];
+		for (int i = 0; i < rows; i++) {
+			ints[i] = Integer.valueOf(i);
+			longs[i] = Long.valueOf(i * 1000L);
+			doubles[i] = Double.valueOf(i / 4.0);
+			strings[i] = Integer.toString(i);
+			decimalStrings[i] = (i / 4.0) + "";
+			booleans[i] = Boolean.valueOf(i % 2 == 0);
+		}
+		columns = new Column[] {
+				new Column("Integer>int", int.class, ints),
+				new Column("Integer>long", long.class, ints),
+				new Column("Long>Integer", Integer.class, longs),
+				new Column("Double>double", double.class, doubles),
+				new Column("Integer>BigDecimal", BigDecimal.class, ints),
+				new Column("Double>BigDecimal", BigDecimal.class, doubles),
+				new Column("String>int", int.class, strings),
+				new Column("String>Double", Double.class, decimalStrings),
+				new Column("Integer>String", String.class, ints),
+				new Column("Boolean>boolean", boolean.class, booleans) };
+	}
+
+	public static void main(String[] args) {
+		int rows = 1000;
+		long millis = 2000;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if ("-rows".equals(args[i])) {
+				rows = Integer.parseInt(args[i + 1]);
+			} else if ("-time".equals(args[i])) {
+				millis = Long.parseLong(args[i + 1]);
+			}
+		}
+		new CoerceBenchmark(rows, millis).run();
+	}
+
+	private void run() {
+		System.out.println("column\tns/value");
+		for (Column column : columns) {
+			System.out.println(column.name + "\t"
+					+ measure(new Column[] { column }));
+		}
+		System.out.println("grid\t" + measure(columns));
+	}
+
+	/**
+	 * Warm up and then coerce the columns for the given time
+	 *
+	 * @return the average nanoseconds per coerced value
+	 */
+	private long measure(Column[] cols) {
+		long end = System.currentTimeMillis() + millis;
+		while (System.currentTimeMillis() < end) {
+			coerce(cols);
+		}
+		long values = 0;
+		final long start = System.nanoTime();
+		long elapsed;
+		do {
+			values += coerce(cols);
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < millis * 1000000L);
+		return elapsed / values;
+	}
+
+	/** Coerce all the cells of the columns, returning their number */
+	private int coerce(Column[] cols) {
+		int count = 0;
+		for (Column column : cols) {
+			final Class<?> type = column.type;
+			final Object[] values = column.values;
+			for (int i = 0; i < values.length; i++) {
+				last = Classes.coerce(type, values[i], false);
+			}
+			count += values.length;
+		}
+		return count;
+	}
+}
@@ -0,0 +1,312 @@
+package org.zkoss.osgi.benchmark;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.launch.FrameworkFactory;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+/**
+ * Measure the class and resource lookups of zcommon in an embedded Equinox
+ * with 10, 100 and 1000 synthetic bundles (see {@link SyntheticBundles}).
+ * For each size it measures the hits, the misses and a class of a split
+ * package through:
+ * <ul>
+ * <li>Activator.forName, getResource and getResources</li>
+ * <li>Classes.forNameByThread</li>
+ * <li>ClassLocator.getResources</li>
+ * </ul>
+ * The lookups are called by reflection, since zcommon is loaded by the
+ * framework, so the numbers include the cost of Method.invoke. Each case
+ * is warmed up and then measured for the same time, printing the average
+ * time of a lookup. Each size runs in its own JVM, started with the same
+ * JVM arguments, since Equinox can be launched only once in a JVM.
+ * <p>
+ * Run it as a Java application with the OSGi framework in the class path:
+ *
+ * <pre>
+ * java -cp bin:../bundles/org.eclipse.osgi_3.7.1.R37x_v20110808-1106.jar
+ *     org.zkoss.osgi.benchmark.LookupBenchmark [-bundles 10,100,1000]
+ *     [-time millis] ../bundles ../bundles-zk6
+ * </pre>
+ *
+ * The directories (or jars) given are installed with the synthetic bundles:
+ * they must contain zcommon and the bundles it depends on.
+ *
+ * @author Mirko Bernardoni <mirko.bernardoniATgmail.com>
+ *
+ */
+public class LookupBenchmark {
+
+	private static final String ZCOMMON = "org.zkoss.common.zcommon";
+	private static final int BATCH = 100;
+	private static final String CHILD = "-child";
+
+	private final List<File> bundleFiles;
+	private final long millis;
+	/** Keep the results alive, so the lookups are not optimized away */
+	private int sink;
+
+	private LookupBenchmark(List<File> bundleFiles, long millis) {
+		this.bundleFiles = bundleFiles;
+		this.millis = millis;
+	}
+
+	public static void main(String[] args) throws Exception {
+		String sizes = "10,100,1000";
+		long millis = 2000;
+		boolean child = false;
+		List<String> files = new ArrayList<String>();
+		List<File> bundleFiles = new ArrayList<File>();
+		for (int i = 0; i < args.length; i++) {
+			if ("-bundles".equals(args[i]) && i + 1 < args.length) {
+				sizes = args[++i];
+			} else if ("-time".equals(args[i]) && i + 1 < args.length) {
+				millis = Long.parseLong(args[++i]);
+			} else if (CHILD.equals(args[i])) {
+				child = true;
+			} else {
+				files.add(args[i]);
+				addBundleFiles(bundleFiles, new File(args[i]));
+			}
+		}
+		if (bundleFiles.isEmpty()) {
+			System.err.println("Usage: LookupBenchmark [-bundles 10,100,1000]"
+					+ " [-time millis] <bundle directory or jar>...");
+			System.exit(1);
+		}
+		if (child) {
+			new LookupBenchmark(bundleFiles, millis).run(Integer
+					.parseInt(sizes));
+			return;
+		}
+		System.out.println("bundles\tcase\tns/op");
+		for (String size : sizes.split(",")) {
+			if (fork(size.trim(), millis, files) != 0) {
+				System.exit(1);
+			}
+		}
+	}
+
+	/**
+	 * Run the benchmark of a size in a new JVM, copying its output
+	 *
+	 * @return the exit value
+	 */
+	private static int fork(String size, long millis, List<String> files)
+			throws Exception {
+		List<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"),
+				"java").getPath());
+		command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(LookupBenchmark.class.getName());
+		command.add(CHILD);
+		command.add("-bundles");
+		command.add(size);
+		command.add("-time");
+		command.add(Long.toString(millis));
+		command.addAll(files);
+		Process process = new ProcessBuilder(command).redirectErrorStream(true)
+				.start();
+		process.getOutputStream().close();
+		InputStream in = process.getInputStream();
+		try {
+			byte[] buf = new byte[4096];
+			for (int n; (n = in.read(buf)) >= 0;) {
+				System.out.write(buf, 0, n);
+			}
+			System.out.flush();
+		} finally {
+			in.close();
+		}
+		return process.waitFor();
+	}
+
+	private static void addBundleFiles(List<File> bundleFiles, File file) {
+		if (!file.isDirectory()) {
+			bundleFiles.add(file);
+			return;
+		}
+		File[] jars = file.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File f) {
+				// the framework is in the class path
+				return f.getName().endsWith(".jar")
+						&& !f.getName().startsWith("org.eclipse.osgi_");
+			}
+		});
+		if (jars != null) {
+			for (File jar : jars) {
+				bundleFiles.add(jar);
+			}
+		}
+	}
+
+	private void run(final int count) throws Exception {
+		File dir = File.createTempFile("zk-lookup", "");
+		dir.delete();
+		Map<String, String> config = new HashMap<String, String>();
+		config.put(Constants.FRAMEWORK_STORAGE, new File(dir, "storage")
+				.getAbsolutePath());
+		config.put(Constants.FRAMEWORK_STORAGE_CLEAN,
+				Constants.FRAMEWORK_STORAGE_CLEAN_ONFIRSTINIT);
+		Framework framework = ServiceLoader.load(FrameworkFactory.class)
+				.iterator().next().newFramework(config);
+		framework.start();
+		try {
+			BundleContext context = framework.getBundleContext();
+			Bundle zcommon = null;
+			for (File file : bundleFiles) {
+				Bundle bundle = context.installBundle(file.toURI().toString());
+				if (ZCOMMON.equals(bundle.getSymbolicName())) {
+					zcommon = bundle;
+				}
+			}
+			if (zcommon == null) {
+				throw new IllegalArgumentException(ZCOMMON + " not found");
+			}
+			for (File file : SyntheticBundles.write(new File(dir, "bundles"),
+					count)) {
+				context.installBundle(file.toURI().toString());
+			}
+			framework.adapt(FrameworkWiring.class).resolveBundles(null);
+			zcommon.start();
+			measureAll(zcommon, count);
+		} finally {
+			framework.stop();
+			framework.waitForStop(0);
+			delete(dir);
+		}
+	}
+
+	private void measureAll(Bundle zcommon, final int count) throws Exception {
+		Class<?> activator = zcommon
+				.loadClass("org.zkoss.common.zcommon.Activator");
+		final Method forName = activator.getMethod("forName", String.class);
+		final Method getResource = activator.getMethod("getResource",
+				String.class);
+		final Method getResources = activator.getMethod("getResources",
+				String.class);
+		final Method forNameByThread = zcommon.loadClass(
+				"org.zkoss.lang.Classes").getMethod("forNameByThread",
+				String.class);
+		Class<?> classLocator = zcommon
+				.loadClass("org.zkoss.util.resource.ClassLocator");
+		final Object locator = classLocator.getDeclaredConstructor()
+				.newInstance();
+		final Method locatorGetResources = classLocator.getMethod(
+				"getResources", String.class);
+
+		final String[] classes = new String[count];
+		final String[] missingClasses = new String[count];
+		final String[] resources = new String[count];
+		final String[] missingResources = new String[count];
+		for (int k = 0; k < count; k++) {
+			classes[k] = SyntheticBundles.getClassName(k);
+			missingClasses[k] = classes[k] + "Missing";
+			resources[k] = SyntheticBundles.getResourceName(k);
+			missingResources[k] = resources[k] + ".missing";
+		}
+
+		measure(count, "Activator.forName hit", forName, null, classes);
+		measure(count, "Activator.forName miss", forName, null, missingClasses);
+		measure(count, "Activator.forName split", forName, null,
+				new String[] { SyntheticBundles.SPLIT_CLASS });
+		measure(count, "Activator.getResource hit", getResource, null,
+				resources);
+		measure(count, "Activator.getResource miss", getResource, null,
+				missingResources);
+		measure(count, "Activator.getResources common", getResources, null,
+				new String[] { SyntheticBundles.COMMON_RESOURCE });
+		measure(count, "Activator.getResources miss", getResources, null,
+				missingResources);
+		measure(count, "Classes.forNameByThread hit", forNameByThread, null,
+				classes);
+		measure(count, "Classes.forNameByThread miss", forNameByThread, null,
+				missingClasses);
+		measure(count, "Classes.forNameByThread split", forNameByThread,
+				null, new String[] { SyntheticBundles.SPLIT_CLASS });
+		measure(count, "ClassLocator.getResources common",
+				locatorGetResources, locator,
+				new String[] { SyntheticBundles.COMMON_RESOURCE });
+		measure(count, "ClassLocator.getResources miss", locatorGetResources,
+				locator, missingResources);
+	}
+
+	/**
+	 * Warm up and then measure a lookup, calling it with the given names in
+	 * turn. The steady state is measured: the first lookup of a name is not.
+	 */
+	private void measure(int count, String name, Method method, Object target,
+			String[] names) throws Exception {
+		// every name is looked up once before the time starts, so a case
+		// doesn't spend its warm up filling the caches
+		int i = 0;
+		while (i < names.length) {
+			i = invoke(method, target, names, i);
+		}
+		long end = System.currentTimeMillis() + millis;
+		while (System.currentTimeMillis() < end) {
+			i = invoke(method, target, names, i);
+		}
+		long ops = 0;
+		final long start = System.nanoTime();
+		long elapsed;
+		do {
+			i = invoke(method, target, names, i);
+			ops += BATCH;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < millis * 1000000L);
+		System.out.println(count + "\t" + name + "\t" + elapsed / ops);
+	}
+
+	private int invoke(Method method, Object target, String[] names, int i)
+			throws Exception {
+		for (int j = 0; j < BATCH; j++, i++) {
+			try {
+				Object result = method.invoke(target, names[i % names.length]);
+				if (result instanceof Enumeration<?>) {
+					// the resources are listed when they are used
+					for (Enumeration<?> en = (Enumeration<?>) result; en
+							.hasMoreElements();) {
+						sink += System.identityHashCode(en.nextElement());
+					}
+				} else if (result != null) {
+					sink += System.identityHashCode(result);
+				}
+			} catch (InvocationTargetException e) {
+				if (!(e.getCause() instanceof ClassNotFoundException)) {
+					throw e;
+				}
+				sink++;
+			}
+		}
+		return i & Integer.MAX_VALUE;
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				delete(f);
+			}
+		}
+		file.delete();
+	}
+}
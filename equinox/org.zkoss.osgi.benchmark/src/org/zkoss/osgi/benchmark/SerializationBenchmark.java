@@ -0,0 +1,237 @@
+package org.zkoss.osgi.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.zkoss.lang.Library;
+import org.zkoss.zk.scripting.bsh.BSHInterpreter;
+import org.zkoss.zk.ui.Page;
+
+import bsh.Interpreter;
+import bsh.NameSpace;
+import bsh.UtilEvalError;
+
+/**
+ * Compare the size and the time of the serialization of the zscript
+ * variables and methods of a page (BSHInterpreter.write and read) in the
+ * default Java serialization and in the compact format. Each desktop is a
+ * zscript run in a BeanShell interpreter:
+ * <ul>
+ * <li>form: the fields of a form, strings and numbers, with two event
+ * handlers</li>
+ * <li>list: a list model of 200 rows, the selection and the paging, with
+ * five methods</li>
+ * <li>large: 200 variables of all the types and 20 methods</li>
+ * </ul>
+ * For each desktop and format the size of the stream is printed, with and
+ * without the methods (which are serialized as objects in both formats), then
+ * the average time of a write and of a read. The variables read are checked
+ * against the ones written.
+ * <p>
+ * It runs as a Java application with zk, zcommon, BeanShell and the OSGi
+ * framework in the class path:
+ *
+ * <pre>
+ * java -cp bin:../bundles-zk6/org.zkoss.zk.zk_6.0.0.jar:../bundles-zk6/org.zkoss.common.zcommon_6.0.0.jar:../bundles-zk6/org.zkoss.common.zweb_6.0.0.jar:../bundles/org.beanshell.bsh_2.0.0.b5.jar:../bundles/org.eclipse.osgi_3.7.1.R37x_v20110808-1106.jar
+ *     org.zkoss.osgi.benchmark.SerializationBenchmark [-time millis]
+ * </pre>
+ *
+ * @author Mirko Bernardoni <mirko.bernardoniATgmail.com>
+ *
+ */
+public class SerializationBenchmark {
+
+	private static final String COMPACT = "org.zkoss.zk.scripting.bsh.serialization.compact";
+	private static final String METHODS = "org.zkoss.zk.scripting.bsh.method.serializable";
+	/** BSHInterpreter doesn't load the default imports of BeanShell */
+	private static final String IMPORTS = "import java.lang.*; import java.util.*;\n";
+
+	private final long millis;
+	/** Let the results escape, so the streams are not optimized away */
+	private int sink;
+
+	private SerializationBenchmark(long millis) {
+		this.millis = millis;
+	}
+
+	public static void main(String[] args) throws Exception {
+		long millis = 2000;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if ("-time".equals(args[i])) {
+				millis = Long.parseLong(args[i + 1]);
+			}
+		}
+		new SerializationBenchmark(millis).run();
+	}
+
+	private void run() throws Exception {
+		System.out.println("desktop\tformat\tbytes\tvariable bytes\twrite us\tread us");
+		measure("form", getFormScript());
+		measure("list", getListScript());
+		measure("large", getLargeScript());
+	}
+
+	private void measure(String desktop, String script) throws Exception {
+		final BSHInterpreter ip = newInterpreter();
+		((Interpreter) ip.getNativeInterpreter()).eval(script);
+		for (String format : new String[] { "default", "compact" }) {
+			Library.setProperty(COMPACT, Boolean.toString("compact"
+					.equals(format)));
+			Library.setProperty(METHODS, "false");
+			final int variables = write(ip).length;
+			Library.setProperty(METHODS, "true");
+			final byte[] data = write(ip);
+			final BSHInterpreter target = newInterpreter();
+			read(target, data);
+			check(ip, target);
+			System.out.println(desktop + "\t" + format + "\t" + data.length
+					+ "\t" + variables + "\t" + time(ip, null, null) + "\t"
+					+ time(null, target, data));
+		}
+	}
+
+	/**
+	 * Warm up and then write the interpreter (or read the data into the target)
+	 * for the given time
+	 *
+	 * @return the average microseconds per operation
+	 */
+	private String time(BSHInterpreter ip, BSHInterpreter target, byte[] data)
+			throws Exception {
+		long end = System.currentTimeMillis() + millis;
+		while (System.currentTimeMillis() < end) {
+			run(ip, target, data);
+		}
+		long count = 0;
+		final long start = System.nanoTime();
+		long elapsed;
+		do {
+			run(ip, target, data);
+			count++;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < millis * 1000000L);
+		return Double.toString(Math.round(elapsed / 100.0 / count) / 10.0);
+	}
+
+	private void run(BSHInterpreter ip, BSHInterpreter target, byte[] data)
+			throws Exception {
+		if (ip != null) {
+			sink += write(ip).length;
+		} else {
+			read(target, data);
+			sink++;
+		}
+	}
+
+	private static byte[] write(BSHInterpreter ip) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		ip.write(out, null);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/** Read the data into an interpreter, replacing what it read before */
+	private static void read(BSHInterpreter ip, byte[] data) throws Exception {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+				data));
+		ip.read(in);
+		in.close();
+	}
+
+	/** Check that the variables and methods read are the ones written */
+	private static void check(BSHInterpreter written, BSHInterpreter read)
+			throws UtilEvalError {
+		NameSpace ns = ((Interpreter) written.getNativeInterpreter())
+				.getNameSpace();
+		Interpreter target = (Interpreter) read.getNativeInterpreter();
+		for (String name : ns.getVariableNames()) {
+			if ("bsh".equals(name)) {
+				continue;
+			}
+			Object value = ns.getVariable(name);
+			Object copy = target.getNameSpace().getVariable(name);
+			if (value == null ? copy != null : !value.equals(copy)) {
+				throw new IllegalStateException(name + ": " + value + " != "
+						+ copy);
+			}
+		}
+		if (ns.getMethods().length != target.getNameSpace().getMethods().length) {
+			throw new IllegalStateException("methods differ");
+		}
+	}
+
+	private static BSHInterpreter newInterpreter() {
+		final Page page = (Page) Proxy.newProxyInstance(
+				SerializationBenchmark.class.getClassLoader(),
+				new Class<?>[] { Page.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						return method.getReturnType() == boolean.class ? Boolean.FALSE
+								: null;
+					}
+				});
+		final BSHInterpreter ip = new BSHInterpreter();
+		ip.init(page, "java");
+		return ip;
+	}
+
+	private static String getFormScript() {
+		StringBuilder sb = new StringBuilder(IMPORTS);
+		String[] fields = { "name", "surname", "email", "phone", "street",
+				"city", "zip", "country", "company", "title" };
+		for (int i = 0; i < fields.length; i++) {
+			sb.append("String ").append(fields[i]).append(" = \"")
+					.append(fields[i]).append(" value\";\n");
+			sb.append("int ").append(fields[i]).append("Length = ")
+					.append(i * 7).append(";\n");
+		}
+		sb.append("boolean dirty = true; Date modified = new Date(0L);\n");
+		sb.append("void onSave() { dirty = false; }\n");
+		sb.append("void onCancel() { dirty = false; name = null; }\n");
+		return sb.toString();
+	}
+
+	private static String getListScript() {
+		StringBuilder sb = new StringBuilder(IMPORTS);
+		sb.append("List rows = new ArrayList();\n");
+		sb.append("for (int i = 0; i < 200; i++) { rows.add(Arrays.asList("
+				+ "new Object[] {\"row \" + i, \"open\", \"user\" + (i % 10)})); }\n");
+		sb.append("int selected = 12; int activePage = 2; int pageSize = 20;\n");
+		sb.append("String sortColumn = \"name\"; boolean ascending = true;\n");
+		sb.append("String filter = \"open\"; Class rowType = String[].class;\n");
+		for (int i = 0; i < 5; i++) {
+			sb.append("void onPaging").append(i).append("(int p) {"
+					+ " activePage = p; selected = -1; }\n");
+		}
+		return sb.toString();
+	}
+
+	private static String getLargeScript() {
+		StringBuilder sb = new StringBuilder(
+				IMPORTS + "import java.math.*;\n");
+		for (int i = 0; i < 40; i++) {
+			sb.append("String s").append(i).append(" = \"value ")
+					.append(i % 8).append("\";\n");
+			sb.append("int n").append(i).append(" = ").append(i)
+					.append(";\n");
+			sb.append("double d").append(i).append(" = ").append(i)
+					.append(".5;\n");
+			sb.append("Boolean b").append(i).append(" = Boolean.TRUE;\n");
+			sb.append("BigDecimal m").append(i).append(" = new BigDecimal(\"")
+					.append(i).append(".25\");\n");
+		}
+		for (int i = 0; i < 20; i++) {
+			sb.append("int twice").append(i).append("(int v) { return v * 2 + ")
+					.append(i).append("; }\n");
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,126 @@
+package org.zkoss.osgi.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * Generate the bundles looked up by the benchmark. The bundle <i>k</i> is
+ * named bench.b<i>k</i> and it exports:
+ * <ul>
+ * <li>the package bench.p<i>k</i> with the class bench.p<i>k</i>.C and the
+ * resource bench/p<i>k</i>/own.txt</li>
+ * <li>the split package bench.split, where only the last bundle contains the
+ * class bench.split.C</li>
+ * </ul>
+ * All the bundles contain the resource bench/common.txt.
+ *
+ * @author Mirko Bernardoni <mirko.bernardoniATgmail.com>
+ *
+ */
+class SyntheticBundles {
+
+	static final String COMMON_RESOURCE = "bench/common.txt";
+	static final String SPLIT_CLASS = "bench.split.C";
+
+	private SyntheticBundles() {
+	}
+
+	static String getClassName(int k) {
+		return "bench.p" + k + ".C";
+	}
+
+	static String getResourceName(int k) {
+		return "bench/p" + k + "/own.txt";
+	}
+
+	/**
+	 * Write the bundles in a directory
+	 *
+	 * @param dir
+	 *            the directory
+	 * @param count
+	 *            the number of bundles
+	 * @return the bundle files, in the order of <i>k</i>
+	 * @throws IOException
+	 */
+	static File[] write(File dir, int count) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Unable to create " + dir);
+		}
+		File[] files = new File[count];
+		for (int k = 0; k < count; k++) {
+			files[k] = new File(dir, "bench.b" + k + ".jar");
+			write(files[k], k, k == count - 1);
+		}
+		return files;
+	}
+
+	private static void write(File file, int k, boolean last)
+			throws IOException {
+		Manifest mf = new Manifest();
+		Attributes attrs = mf.getMainAttributes();
+		attrs.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		attrs.putValue("Bundle-ManifestVersion", "2");
+		attrs.putValue("Bundle-SymbolicName", "bench.b" + k);
+		attrs.putValue("Bundle-Version", "1.0.0");
+		attrs.putValue("Export-Package", "bench.p" + k + ",bench.split");
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(file),
+				mf);
+		try {
+			addEntry(out, getClassName(k).replace('.', '/') + ".class",
+					toClassFile(getClassName(k)));
+			addEntry(out, getResourceName(k), ("bundle " + k).getBytes("UTF-8"));
+			addEntry(out, COMMON_RESOURCE, ("bundle " + k).getBytes("UTF-8"));
+			if (last) {
+				addEntry(out, SPLIT_CLASS.replace('.', '/') + ".class",
+						toClassFile(SPLIT_CLASS));
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void addEntry(JarOutputStream out, String name, byte[] data)
+			throws IOException {
+		out.putNextEntry(new JarEntry(name));
+		out.write(data);
+		out.closeEntry();
+	}
+
+	/**
+	 * The smallest class file the class loaders accept: a public class
+	 * extending Object, without members.
+	 */
+	private static byte[] toClassFile(String className) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0xCAFEBABE);
+		out.writeShort(0); // minor version
+		out.writeShort(50); // Java 6
+		out.writeShort(5); // constant pool count
+		out.writeByte(7); // #1 Class #2
+		out.writeShort(2);
+		out.writeByte(1); // #2 Utf8
+		out.writeUTF(className.replace('.', '/'));
+		out.writeByte(7); // #3 Class #4
+		out.writeShort(4);
+		out.writeByte(1); // #4 Utf8
+		out.writeUTF("java/lang/Object");
+		out.writeShort(0x0021); // ACC_PUBLIC | ACC_SUPER
+		out.writeShort(1); // this class
+		out.writeShort(3); // super class
+		out.writeShort(0); // interfaces
+		out.writeShort(0); // fields
+		out.writeShort(0); // methods
+		out.writeShort(0); // attributes
+		out.close();
+		return bytes.toByteArray();
+	}
+}
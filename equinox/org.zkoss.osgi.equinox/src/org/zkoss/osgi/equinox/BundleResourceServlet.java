@@ -0,0 +1,280 @@
+package org.zkoss.osgi.equinox;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.service.http.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serve the static resources of a bundle, in place of the resources
+ * registered in the HttpService that are read from the bundle at every
+ * request. A resource is copied once into a directory where each file is
+ * named by the SHA-1 of its content, then it is served from the file with
+ * FileChannel.transferTo. The hash is also the strong ETag of the resource,
+ * so a client revalidating an unchanged resource gets a 304 even after a
+ * bundle update or a restart, while the Cache-Control max-age lets it skip
+ * the revalidation.
+ * <p>
+ * The copies are forgotten when a bundle is unresolved, updated or
+ * uninstalled, since a resource may come from any bundle visible to the
+ * HttpContext, and their files are deleted. The directory is emptied when the
+ * servlet is created.
+ *
+ * @author Mirko Bernardoni <mirko.bernardoniATgmail.com>
+ *
+ */
+public class BundleResourceServlet extends HttpServlet implements
+		SynchronousBundleListener {
+
+	private static final long serialVersionUID = 1L;
+	private static final Logger logger = LoggerFactory
+			.getLogger(BundleResourceServlet.class);
+	private static final int BUFFER_SIZE = 8192;
+
+	private final HttpContext httpContext;
+	private final String pathReal;
+	private final File directory;
+	private final int maxAge;
+	/** Resource name to its copy */
+	private final ConcurrentMap<String, StoredResource> resources = new ConcurrentHashMap<String, StoredResource>();
+
+	/**
+	 *
+	 * @param httpContext
+	 *            the context providing the resources
+	 * @param pathReal
+	 *            the bundle relative path
+	 * @param directory
+	 *            the directory of the copies, or null to read the resources
+	 *            from the bundle at every request
+	 * @param maxAge
+	 *            the seconds a client can use a resource without revalidating
+	 *            it
+	 */
+	public BundleResourceServlet(HttpContext httpContext, String pathReal,
+			File directory, int maxAge) {
+		this.httpContext = httpContext;
+		this.pathReal = "/".equals(pathReal) ? "" : pathReal;
+		this.maxAge = maxAge;
+		if (directory != null
+				&& (directory.isDirectory() || directory.mkdirs())) {
+			File[] files = directory.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					file.delete(); // copies of the previous run
+				}
+			}
+			this.directory = directory;
+		} else {
+			this.directory = null;
+		}
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest request,
+			HttpServletResponse response) throws ServletException, IOException {
+		if (!httpContext.handleSecurity(request, response)) {
+			return;
+		}
+		final String pathInfo = request.getPathInfo();
+		final String name = pathInfo == null ? pathReal : pathReal + pathInfo;
+		StoredResource resource = resources.get(name);
+		if (resource == null || !resource.file.isFile()) {
+			URL url = httpContext.getResource(name);
+			if (url == null) {
+				response.sendError(HttpServletResponse.SC_NOT_FOUND);
+				return;
+			}
+			if (directory == null) {
+				setContentType(response, name);
+				copy(url, response.getOutputStream());
+				return;
+			}
+			resource = store(name, url);
+		}
+		response.setHeader("ETag", resource.etag);
+		response.setHeader("Cache-Control", "max-age=" + maxAge);
+		if (matches(request.getHeader("If-None-Match"), resource.etag)) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+		setContentType(response, name);
+		response.setHeader("Content-Length", Long.toString(resource.file
+				.length()));
+		send(resource.file, response.getOutputStream());
+	}
+
+	@Override
+	public void bundleChanged(BundleEvent event) {
+		switch (event.getType()) {
+		case BundleEvent.UNRESOLVED:
+		case BundleEvent.UPDATED:
+		case BundleEvent.UNINSTALLED:
+			clear();
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Forget the copies and delete their files, except the ones stored again
+	 * meanwhile. A file deleted while it is sent is still read to the end,
+	 * and the next request stores it again.
+	 */
+	private synchronized void clear() {
+		Set<File> files = new HashSet<File>();
+		for (StoredResource resource : resources.values()) {
+			files.add(resource.file);
+		}
+		resources.clear();
+		for (StoredResource resource : resources.values()) {
+			files.remove(resource.file);
+		}
+		for (File file : files) {
+			if (!file.delete() && file.exists()) {
+				logger.debug("Unable to delete {}", file);
+			}
+		}
+	}
+
+	private void setContentType(HttpServletResponse response, String name) {
+		String mimeType = httpContext.getMimeType(name);
+		if (mimeType == null) {
+			mimeType = getServletContext().getMimeType(name);
+		}
+		if (mimeType != null) {
+			response.setContentType(mimeType);
+		}
+	}
+
+	/**
+	 * Copy a resource into the directory, unless a file with the same content
+	 * is already there
+	 */
+	private StoredResource store(String name, URL url) throws IOException {
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("SHA-1 not available", e);
+		}
+		File temp = File.createTempFile("resource", ".tmp", directory);
+		try {
+			InputStream in = url.openStream();
+			try {
+				OutputStream out = new FileOutputStream(temp);
+				try {
+					byte[] buf = new byte[BUFFER_SIZE];
+					for (int n; (n = in.read(buf)) >= 0;) {
+						digest.update(buf, 0, n);
+						out.write(buf, 0, n);
+					}
+				} finally {
+					out.close();
+				}
+			} finally {
+				in.close();
+			}
+			String hash = toHex(digest.digest());
+			File file = new File(directory, hash);
+			if (!file.isFile() && !temp.renameTo(file) && !file.isFile()) {
+				throw new IOException("Unable to create " + file);
+			}
+			StoredResource resource = new StoredResource(file, '"' + hash
+					+ '"');
+			resources.put(name, resource);
+			logger.debug("Stored {} as {}", name, hash);
+			return resource;
+		} finally {
+			temp.delete(); // if not renamed
+		}
+	}
+
+	/** Send a file, without copying it in the heap if the container allows */
+	private static void send(File file, OutputStream out) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			WritableByteChannel target = Channels.newChannel(out);
+			long size = channel.size();
+			for (long pos = 0; pos < size;) {
+				pos += channel.transferTo(pos, size - pos, target);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void copy(URL url, OutputStream out) throws IOException {
+		InputStream in = url.openStream();
+		try {
+			byte[] buf = new byte[BUFFER_SIZE];
+			for (int n; (n = in.read(buf)) >= 0;) {
+				out.write(buf, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Check an If-None-Match header against an ETag */
+	private static boolean matches(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		for (String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			if (tag.startsWith("W/")) {
+				tag = tag.substring(2); // weak comparison
+			}
+			if (tag.equals(etag) || tag.equals("*")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+			sb.append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	/** The copy of a resource */
+	private static class StoredResource {
+		private final File file;
+		private final String etag;
+
+		private StoredResource(File file, String etag) {
+			this.file = file;
+			this.etag = etag;
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package org.zkoss.osgi.equinox;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.osgi.framework.Bundle;
+import org.zkoss.common.zcommon.Activator;
+
+/**
+ * Filter setting the bundle owning the pages as requesting bundle while the
+ * request is served, so the classes and the resources are resolved through
+ * its wiring.
+ * 
+ * @author Mirko Bernardoni <mirko.bernardoniATgmail.com>
+ * 
+ */
+public class BundleScopeFilter implements Filter {
+
+	private final Bundle bundle;
+
+	/**
+	 * 
+	 * @param bundle
+	 *            the bundle owning the pages
+	 */
+	public BundleScopeFilter(Bundle bundle) {
+		this.bundle = bundle;
+	}
+
+	@Override
+	public void init(FilterConfig filterConfig) throws ServletException {
+	}
+
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response,
+			FilterChain chain) throws IOException, ServletException {
+		Bundle old = Activator.setRequestingBundle(bundle);
+		try {
+			chain.doFilter(request, response);
+		} finally {
+			Activator.setRequestingBundle(old);
+		}
+	}
+
+	@Override
+	public void destroy() {
+	}
+}
@@ -0,0 +1,546 @@
+package org.zkoss.osgi.equinox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.SynchronousBundleListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zkoss.web.servlet.Charsets;
+import org.zkoss.web.servlet.Servlets;
+
+/**
+ * Filter of the Zk engine keeping the client resources (the JavaScript and
+ * the CSS under /zkau/web) in memory, outside the heap, both as they are and
+ * compressed with gzip. The engine produces a resource once, without
+ * compression, then each client gets the variant its Accept-Encoding allows,
+ * so nothing is compressed again.
+ * <p>
+ * The URI of the resources contains the Zk build, and the engine can produce
+ * a different resource for a browser or a language, so the key of a resource
+ * is the URI with what the engine tells apart: the browser as Zk names it,
+ * with its major version, and the locale as the engine resolves it: the
+ * preferred locale of the session, of the application or of the library
+ * property, else the locale of the request. Only the successful
+ * responses without cookies are kept, the least recently used first dropped
+ * when the cache exceeds its size in bytes. The cache is cleared when a bundle
+ * is unresolved, updated or uninstalled, since the resources are read from
+ * the bundles.
+ *
+ * @author Mirko Bernardoni <mirko.bernardoniATgmail.com>
+ *
+ */
+public class ClientResourceFilter implements Filter, SynchronousBundleListener {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(ClientResourceFilter.class);
+	private static final String WEB_PREFIX = "/web/";
+	private static final String ACCEPT_ENCODING = "Accept-Encoding";
+	private static final String CONTENT_LENGTH = "Content-Length";
+	private static final String LAST_MODIFIED = "Last-Modified";
+
+	/** The resources, the least recently used first */
+	private final Map<String, ClientResource> resources = new LinkedHashMap<String, ClientResource>(
+			16, 0.75f, true);
+	private final long maxBytes;
+	/** The bytes of the resources kept, guarded by resources */
+	private long bytes;
+
+	/**
+	 *
+	 * @param maxBytes
+	 *            the maximum number of bytes kept, counting a resource both
+	 *            as it is and compressed
+	 */
+	public ClientResourceFilter(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	@Override
+	public void init(FilterConfig filterConfig) throws ServletException {
+	}
+
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response,
+			FilterChain chain) throws IOException, ServletException {
+		if (!(request instanceof HttpServletRequest)
+				|| !isCacheable((HttpServletRequest) request)) {
+			chain.doFilter(request, response);
+			return;
+		}
+		HttpServletRequest httpRequest = (HttpServletRequest) request;
+		HttpServletResponse httpResponse = (HttpServletResponse) response;
+		boolean gzip = acceptsGzip(httpRequest);
+		String key = getKey(httpRequest);
+		ClientResource resource = get(key);
+		if (resource != null) {
+			resource.sendHeaders(httpResponse);
+			resource.send(httpResponse, gzip);
+			return;
+		}
+
+		// let the engine write the resource without compression
+		CapturingResponse capture = new CapturingResponse(httpResponse);
+		chain.doFilter(new PlainRequest(httpRequest), capture);
+		byte[] data = capture.getData();
+		if (capture.status >= HttpServletResponse.SC_BAD_REQUEST) {
+			return; // the error was sent
+		}
+		if (!capture.isCacheable() || data.length > maxBytes) {
+			httpResponse.setContentLength(data.length);
+			httpResponse.getOutputStream().write(data);
+			return;
+		}
+		resource = new ClientResource(data, capture);
+		put(key, resource);
+		logger.debug("Cached {} ({} bytes, {} compressed)", new Object[] {
+				httpRequest.getRequestURI(), data.length,
+				resource.gzipped.capacity() });
+		resource.send(httpResponse, gzip); // the headers were sent
+	}
+
+	@Override
+	public void destroy() {
+		clear();
+	}
+
+	@Override
+	public void bundleChanged(BundleEvent event) {
+		switch (event.getType()) {
+		case BundleEvent.UNRESOLVED:
+		case BundleEvent.UPDATED:
+		case BundleEvent.UNINSTALLED:
+			clear();
+			break;
+		default:
+			break;
+		}
+	}
+
+	private ClientResource get(String key) {
+		synchronized (resources) {
+			return resources.get(key);
+		}
+	}
+
+	/**
+	 * Keep the resource, then drop the least recently used ones while the
+	 * resources exceed the size
+	 */
+	private void put(String key, ClientResource resource) {
+		synchronized (resources) {
+			ClientResource old = resources.put(key, resource);
+			if (old != null) {
+				bytes -= old.size();
+			}
+			bytes += resource.size();
+			Iterator<ClientResource> it = resources.values().iterator();
+			while (bytes > maxBytes && it.hasNext()) {
+				ClientResource eldest = it.next();
+				if (eldest != resource) {
+					it.remove();
+					bytes -= eldest.size();
+				}
+			}
+		}
+	}
+
+	private void clear() {
+		synchronized (resources) {
+			resources.clear();
+			bytes = 0;
+		}
+	}
+
+	/**
+	 * Only the plain GET of a client resource is cached: a conditional
+	 * request is left to the engine
+	 */
+	private static boolean isCacheable(HttpServletRequest request) {
+		String pathInfo = request.getPathInfo();
+		return pathInfo != null && pathInfo.startsWith(WEB_PREFIX)
+				&& "GET".equals(request.getMethod())
+				&& request.getHeader("If-Modified-Since") == null
+				&& request.getHeader("If-None-Match") == null;
+	}
+
+	/**
+	 * The URI, the browser with its major version as the engine sees them,
+	 * and the locale the engine uses. The full User-Agent and Accept-Language
+	 * would give a key to almost each client. No session is created for the
+	 * key.
+	 */
+	private static String getKey(HttpServletRequest request) {
+		StringBuilder sb = new StringBuilder(request.getRequestURI());
+		if (request.getQueryString() != null) {
+			sb.append('?').append(request.getQueryString());
+		}
+		sb.append('\n');
+		String userAgent = request.getHeader("User-Agent");
+		String browser = userAgent != null ? Servlets.getBrowser(userAgent)
+				: null;
+		if (browser != null) {
+			sb.append(browser);
+			Double version = Servlets.getBrowser(userAgent, browser);
+			if (version != null) {
+				sb.append(version.intValue());
+			}
+			if (Servlets.isBrowser(userAgent, "ios")) {
+				sb.append(" ios");
+			}
+		}
+		Locale locale = Charsets.getPreferredLocale(request.getSession(false),
+				request);
+		return sb.append('\n').append(locale).toString();
+	}
+
+	private static boolean acceptsGzip(HttpServletRequest request) {
+		String encodings = request.getHeader(ACCEPT_ENCODING);
+		if (encodings == null) {
+			return false;
+		}
+		for (String encoding : encodings.split(",")) {
+			String[] params = encoding.trim().split(";");
+			if ("gzip".equalsIgnoreCase(params[0].trim())) {
+				return params.length < 2
+						|| !params[1].trim().matches("q=0(\\.0*)?");
+			}
+		}
+		return false;
+	}
+
+	private static ByteBuffer toDirectBuffer(byte[] data) {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+		buffer.put(data);
+		buffer.flip();
+		return buffer;
+	}
+
+	/** A client resource, as it is and compressed */
+	private static class ClientResource {
+		private final ByteBuffer plain;
+		private final ByteBuffer gzipped;
+		private final String contentType;
+		private final String characterEncoding;
+		private final Locale locale;
+		/** The headers set by the engine, in order */
+		private final List<Header> headers;
+		/** When the engine produced the resource */
+		private final long created;
+
+		private ClientResource(byte[] data, CapturingResponse capture)
+				throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+					data.length / 3 + 64);
+			GZIPOutputStream out = new GZIPOutputStream(bytes);
+			out.write(data);
+			out.close();
+			this.plain = toDirectBuffer(data);
+			this.gzipped = toDirectBuffer(bytes.toByteArray());
+			this.contentType = capture.contentType;
+			this.characterEncoding = capture.characterEncoding;
+			this.locale = capture.locale;
+			this.headers = capture.headers;
+			this.created = capture.created;
+		}
+
+		private long size() {
+			return plain.capacity() + gzipped.capacity();
+		}
+
+		/**
+		 * Send the headers as the engine did, the dates moved forward by the
+		 * time passed since, so the Date is now and the Expires as far as it
+		 * was
+		 */
+		private void sendHeaders(HttpServletResponse response) {
+			if (contentType != null) {
+				response.setContentType(contentType);
+			}
+			if (locale != null) {
+				response.setLocale(locale);
+			}
+			if (characterEncoding != null) {
+				response.setCharacterEncoding(characterEncoding);
+			}
+			long elapsed = System.currentTimeMillis() - created;
+			for (Header header : headers) {
+				header.send(response, elapsed);
+			}
+		}
+
+		/** Send the body in the requested encoding */
+		private void send(HttpServletResponse response, boolean gzip)
+				throws IOException {
+			response.addHeader("Vary", ACCEPT_ENCODING);
+			ByteBuffer buffer = (gzip ? gzipped : plain).duplicate();
+			if (gzip) {
+				response.setHeader("Content-Encoding", "gzip");
+			}
+			response.setContentLength(buffer.remaining());
+			OutputStream out = response.getOutputStream();
+			Channels.newChannel(out).write(buffer);
+			out.flush();
+		}
+	}
+
+	/** A header set or added by the engine, a date kept as a number */
+	private static class Header {
+		private final String name;
+		private final String value;
+		private final long date;
+		private final boolean add;
+
+		private Header(String name, String value, long date, boolean add) {
+			this.name = name;
+			this.value = value;
+			this.date = date;
+			this.add = add;
+		}
+
+		/**
+		 * Send the header, a date but the Last-Modified moved forward by the
+		 * elapsed milliseconds
+		 */
+		private void send(HttpServletResponse response, long elapsed) {
+			if (value != null) {
+				if (add) {
+					response.addHeader(name, value);
+				} else {
+					response.setHeader(name, value);
+				}
+				return;
+			}
+			long sent = LAST_MODIFIED.equalsIgnoreCase(name) ? date : date
+					+ elapsed;
+			if (add) {
+				response.addDateHeader(name, sent);
+			} else {
+				response.setDateHeader(name, sent);
+			}
+		}
+	}
+
+	/** The request without the Accept-Encoding, so the engine doesn't compress */
+	private static class PlainRequest extends
+			javax.servlet.http.HttpServletRequestWrapper {
+
+		private PlainRequest(HttpServletRequest request) {
+			super(request);
+		}
+
+		@Override
+		public String getHeader(String name) {
+			return ACCEPT_ENCODING.equalsIgnoreCase(name) ? null : super
+					.getHeader(name);
+		}
+
+		@Override
+		@SuppressWarnings("rawtypes")
+		public Enumeration getHeaders(String name) {
+			return ACCEPT_ENCODING.equalsIgnoreCase(name) ? Collections
+					.enumeration(Collections.emptyList()) : super
+					.getHeaders(name);
+		}
+	}
+
+	/**
+	 * The response keeping the body and the headers written by the engine. The
+	 * status and the headers still go to the client, except the length of the
+	 * body, which depends on the encoding.
+	 */
+	private static class CapturingResponse extends HttpServletResponseWrapper {
+		private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+		private final List<Header> headers = new ArrayList<Header>();
+		private final long created = System.currentTimeMillis();
+		private String contentType;
+		private String characterEncoding;
+		private Locale locale;
+		private int status = SC_OK;
+		private boolean cookies;
+		private ServletOutputStream stream;
+		private PrintWriter writer;
+
+		private CapturingResponse(HttpServletResponse response) {
+			super(response);
+		}
+
+		private boolean isCacheable() {
+			return status == SC_OK && !cookies;
+		}
+
+		private byte[] getData() {
+			if (writer != null) {
+				writer.flush();
+			}
+			return data.toByteArray();
+		}
+
+		/** A set header replaces the ones of the same name kept before */
+		private void capture(Header header) {
+			if (!header.add) {
+				for (Iterator<Header> it = headers.iterator(); it.hasNext();) {
+					if (it.next().name.equalsIgnoreCase(header.name)) {
+						it.remove();
+					}
+				}
+			}
+			headers.add(header);
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() {
+			if (stream == null) {
+				stream = new ServletOutputStream() {
+					@Override
+					public void write(int b) {
+						data.write(b);
+					}
+
+					@Override
+					public void write(byte[] b, int off, int len) {
+						data.write(b, off, len);
+					}
+				};
+			}
+			return stream;
+		}
+
+		@Override
+		public PrintWriter getWriter() throws IOException {
+			if (writer == null) {
+				writer = new PrintWriter(new OutputStreamWriter(
+						getOutputStream(), getCharacterEncoding()));
+			}
+			return writer;
+		}
+
+		@Override
+		public void flushBuffer() {
+		}
+
+		@Override
+		public void setContentLength(int len) {
+		}
+
+		@Override
+		public void setContentType(String type) {
+			super.setContentType(type);
+			contentType = type;
+		}
+
+		@Override
+		public void setCharacterEncoding(String charset) {
+			super.setCharacterEncoding(charset);
+			characterEncoding = charset;
+		}
+
+		@Override
+		public void setLocale(Locale loc) {
+			super.setLocale(loc);
+			locale = loc;
+		}
+
+		@Override
+		public void setHeader(String name, String value) {
+			if (!CONTENT_LENGTH.equalsIgnoreCase(name)) {
+				super.setHeader(name, value);
+				capture(new Header(name, value, 0, false));
+			}
+		}
+
+		@Override
+		public void addHeader(String name, String value) {
+			if (!CONTENT_LENGTH.equalsIgnoreCase(name)) {
+				super.addHeader(name, value);
+				capture(new Header(name, value, 0, true));
+			}
+		}
+
+		@Override
+		public void setDateHeader(String name, long date) {
+			super.setDateHeader(name, date);
+			capture(new Header(name, null, date, false));
+		}
+
+		@Override
+		public void addDateHeader(String name, long date) {
+			super.addDateHeader(name, date);
+			capture(new Header(name, null, date, true));
+		}
+
+		@Override
+		public void setIntHeader(String name, int value) {
+			setHeader(name, Integer.toString(value));
+		}
+
+		@Override
+		public void addIntHeader(String name, int value) {
+			addHeader(name, Integer.toString(value));
+		}
+
+		@Override
+		public void addCookie(Cookie cookie) {
+			super.addCookie(cookie);
+			cookies = true;
+		}
+
+		@Override
+		public void setStatus(int sc) {
+			super.setStatus(sc);
+			status = sc;
+		}
+
+		@Override
+		@SuppressWarnings("deprecation")
+		public void setStatus(int sc, String sm) {
+			super.setStatus(sc, sm);
+			status = sc;
+		}
+
+		@Override
+		public void sendError(int sc) throws IOException {
+			super.sendError(sc);
+			status = sc;
+		}
+
+		@Override
+		public void sendError(int sc, String msg) throws IOException {
+			super.sendError(sc, msg);
+			status = sc;
+		}
+
+		@Override
+		public void sendRedirect(String location) throws IOException {
+			super.sendRedirect(location);
+			status = SC_MOVED_TEMPORARILY;
+		}
+	}
+}
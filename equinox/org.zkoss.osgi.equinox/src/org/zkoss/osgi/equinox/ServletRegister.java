@@ -1,11 +1,13 @@
 package org.zkoss.osgi.equinox;
 
+import java.io.File;
 import java.util.Dictionary;
 import java.util.Hashtable;
 
 import javax.servlet.ServletException;
 
 import org.eclipse.equinox.http.servlet.ExtendedHttpService;
+import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceReference;
 import org.osgi.service.http.HttpContext;
@@ -31,11 +33,27 @@ public class ServletRegister extends
 			.getLogger(ServletRegister.class);
 	private static final String LOADER_ALIAS = "/*.zul";
 	private static final String ENGINE_ALIAS = "/zkau";
+	private static final String RESOURCE_DIRECTORY = "resources";
+	/** The property of the seconds the clients cache the static resources */
+	private static final String RESOURCE_MAX_AGE = "org.zkoss.osgi.equinox.resource.maxAge";
+	private static final int DEFAULT_MAX_AGE = 7 * 24 * 60 * 60;
+	/**
+	 * The property of the bytes of the client resources kept by the engine,
+	 * each counted as it is and compressed
+	 */
+	private static final String CLIENT_RESOURCE_MAX_BYTES = "org.zkoss.osgi.equinox.clientResource.cache.maxBytes";
+	private static final int DEFAULT_CLIENT_RESOURCE_MAX_BYTES = 16 * 1024 * 1024;
+	/** The property to parse the zscripts of the pages in the background when they are mapped */
+	private static final String ZSCRIPT_PRECOMPILE = "org.zkoss.osgi.equinox.zscript.precompile";
 
 	private final String pathAlias;
 	private final String pathReal;
+	private final boolean bundleScoped;
 
 	private ZulExtensionFilter zulFilter;
+	private BundleScopeFilter engineFilter;
+	private BundleResourceServlet resourceServlet;
+	private ClientResourceFilter clientResourceFilter;
 	private HttpContext httpContext;
 
 	/**
@@ -49,9 +67,28 @@ public class ServletRegister extends
 	 */
 	public ServletRegister(BundleContext context, String pathAlias,
 			String pathReal) {
+		this(context, pathAlias, pathReal, true);
+	}
+
+	/**
+	 * 
+	 * @param context
+	 *            the bundle context
+	 * @param pathAlias
+	 *            alias for the web url
+	 * @param pathReal
+	 *            the bundle relative path
+	 * @param bundleScoped
+	 *            true to resolve the classes and the resources of the pages
+	 *            through the wiring of the bundle owning the context before
+	 *            searching all the bundles
+	 */
+	public ServletRegister(BundleContext context, String pathAlias,
+			String pathReal, boolean bundleScoped) {
 		super(context, ExtendedHttpService.class.getCanonicalName(), null);
 		this.pathAlias = pathAlias;
 		this.pathReal = pathReal;
+		this.bundleScoped = bundleScoped;
 	}
 
 	@Override
@@ -78,13 +115,37 @@ public class ServletRegister extends
 			service.registerServlet(ENGINE_ALIAS, engine, engineParam,
 					httpContext);
 			logger.debug("ZK engine loaded");
+			// Client resources kept compressed
+			clientResourceFilter = new ClientResourceFilter(getIntProperty(
+					CLIENT_RESOURCE_MAX_BYTES, DEFAULT_CLIENT_RESOURCE_MAX_BYTES));
+			context.addBundleListener(clientResourceFilter);
+			service.registerFilter(ENGINE_ALIAS, clientResourceFilter, null,
+					httpContext);
+			logger.debug("Filter for client resources added");
 			// Alias map url to path
-			service.registerResources(pathAlias, pathReal, httpContext);
+			resourceServlet = new BundleResourceServlet(httpContext, pathReal,
+					getResourceDirectory(), getIntProperty(RESOURCE_MAX_AGE,
+							DEFAULT_MAX_AGE));
+			context.addBundleListener(resourceServlet);
+			service.registerServlet(pathAlias, resourceServlet, null,
+					httpContext);
 			logger.debug("Mapped {} to {}", pathReal, pathAlias);
 			// Filter to intercept the zul pages
-			zulFilter = new ZulExtensionFilter(loader, pathReal);
+			Bundle owner = bundleScoped ? context.getBundle() : null;
+			zulFilter = new ZulExtensionFilter(loader, pathReal, owner);
 			service.registerFilter("/*.zul", zulFilter, null, httpContext);
 			logger.debug("Filter for zul added");
+			if (owner != null) {
+				// Events handled by the engine resolve like the pages
+				engineFilter = new BundleScopeFilter(owner);
+				service.registerFilter(ENGINE_ALIAS, engineFilter, null,
+						httpContext);
+				logger.debug("Pages scoped to bundle {}",
+						owner.getSymbolicName());
+			}
+			if (Boolean.parseBoolean(context.getProperty(ZSCRIPT_PRECOMPILE))) {
+				new ZScriptPrecompiler(context.getBundle(), pathReal).start();
+			}
 		} catch (ServletException e) {
 			logger.error("Error configuring service", e);
 		} catch (NamespaceException e) {
@@ -100,11 +161,42 @@ public class ServletRegister extends
 		httpService.unregister(ENGINE_ALIAS);
 		httpService.unregister(LOADER_ALIAS);
 		httpService.unregisterFilter(zulFilter);
-		try {
-			httpService.registerResources(pathAlias, pathReal, httpContext);
-		} catch (NamespaceException e) {
+		if (engineFilter != null) {
+			httpService.unregisterFilter(engineFilter);
 		}
+		httpService.unregisterFilter(clientResourceFilter);
+		context.removeBundleListener(clientResourceFilter);
+		httpService.unregister(pathAlias);
+		context.removeBundleListener(resourceServlet);
 		super.removedService(reference, service);
 		logger.debug("Zk loader, ZK engine, Filter, Map unregister");
 	}
+
+	/**
+	 * The directory of the copies of the static resources, one for each alias
+	 *
+	 * @return the directory or null if the framework has no file system
+	 *         support
+	 */
+	private File getResourceDirectory() {
+		StringBuilder sb = new StringBuilder(RESOURCE_DIRECTORY);
+		for (int i = 0; i < pathAlias.length(); i++) {
+			char c = pathAlias.charAt(i);
+			sb.append(Character.isLetterOrDigit(c) || c == '.' || c == '-' ? c
+					: '+');
+		}
+		return context.getDataFile(sb.toString());
+	}
+
+	private int getIntProperty(String name, int defaultValue) {
+		String value = context.getProperty(name);
+		if (value != null) {
+			try {
+				return Integer.parseInt(value.trim());
+			} catch (NumberFormatException e) {
+				logger.warn("Invalid {}: {}", name, value);
+			}
+		}
+		return defaultValue;
+	}
 }
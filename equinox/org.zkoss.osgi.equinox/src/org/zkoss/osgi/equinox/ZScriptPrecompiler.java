@@ -0,0 +1,153 @@
+package org.zkoss.osgi.equinox;
+
+import java.net.URL;
+import java.util.Enumeration;
+
+import org.osgi.framework.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zkoss.common.zcommon.Activator;
+import org.zkoss.zk.scripting.bsh.BSHInterpreter;
+import org.zkoss.zk.ui.WebApp;
+import org.zkoss.zk.ui.WebApps;
+import org.zkoss.zk.ui.metainfo.NodeInfo;
+import org.zkoss.zk.ui.metainfo.PageDefinition;
+import org.zkoss.zk.ui.metainfo.PageDefinitions;
+import org.zkoss.zk.ui.metainfo.Parser;
+import org.zkoss.zk.ui.metainfo.ZScriptInfo;
+
+/**
+ * Parse the Java zscripts of the pages of a bundle when it starts, so the
+ * first request of a page evaluates its zscripts without parsing them. The
+ * pages are read with the Zk parser, then each zscript is given to
+ * {@link BSHInterpreter#precompile(String)} as the interpreter will receive
+ * it, with the bundle as the requesting bundle, so only the interpreters of
+ * the pages of the bundle use them. Only the Java language, interpreted by
+ * BeanShell, is parsed ahead.
+ *
+ * @author Mirko Bernardoni <mirko.bernardoniATgmail.com>
+ *
+ */
+public class ZScriptPrecompiler {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(ZScriptPrecompiler.class);
+	private static final String LANGUAGE = "java";
+
+	private final Bundle bundle;
+	private final String pathReal;
+	private int pages;
+	private int scripts;
+	private int skipped;
+
+	/**
+	 *
+	 * @param bundle
+	 *            the bundle owning the pages
+	 * @param pathReal
+	 *            the bundle relative path of the pages
+	 */
+	public ZScriptPrecompiler(Bundle bundle, String pathReal) {
+		this.bundle = bundle;
+		this.pathReal = "/".equals(pathReal) ? "" : pathReal;
+	}
+
+	/**
+	 * Parse the zscripts in a daemon thread, so the caller, e.g. the thread
+	 * delivering the service events, isn't held while the pages are read
+	 */
+	public void start() {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					precompile();
+				} catch (RuntimeException e) {
+					logger.warn("Unable to precompile the zscripts of "
+							+ bundle.getSymbolicName(), e);
+				}
+			}
+		}, "ZScriptPrecompiler-" + bundle.getSymbolicName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Parse the zscripts of the pages under the path. The Zk loader servlet
+	 * must be initialized. A page that can't be read is left to the first
+	 * request.
+	 */
+	public void precompile() {
+		WebApp webApp = WebApps.getCurrent();
+		if (webApp == null) {
+			logger.warn("Zk not started, zscripts of {} not precompiled",
+					bundle.getSymbolicName());
+			return;
+		}
+		Enumeration<URL> entries = bundle.findEntries(
+				pathReal.length() == 0 ? "/" : pathReal, "*.zul", true);
+		if (entries == null) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		Bundle old = Activator.setRequestingBundle(bundle);
+		try {
+			while (entries.hasMoreElements()) {
+				URL url = entries.nextElement();
+				String path = url.getPath().substring(pathReal.length());
+				try {
+					PageDefinition pageDefinition = new Parser(webApp,
+							PageDefinitions.getLocator(webApp, path)).parse(
+							url, path);
+					precompile(pageDefinition, pageDefinition);
+					pages++;
+				} catch (Exception e) {
+					logger.warn("Unable to precompile " + path, e);
+				}
+			}
+		} finally {
+			Activator.setRequestingBundle(old);
+		}
+		logger.debug("Precompiled {} zscripts of {} pages in {} ms, "
+				+ "{} left to the interpreter", new Object[] { scripts, pages,
+				System.currentTimeMillis() - start, skipped });
+	}
+
+	private void precompile(PageDefinition pageDefinition, NodeInfo node) {
+		for (NodeInfo child : node.getChildren()) {
+			if (child instanceof ZScriptInfo) {
+				precompile(pageDefinition, (ZScriptInfo) child);
+			} else {
+				precompile(pageDefinition, child);
+			}
+		}
+	}
+
+	private void precompile(PageDefinition pageDefinition, ZScriptInfo info) {
+		String language = info.getLanguage();
+		if (!LANGUAGE.equalsIgnoreCase(language)) {
+			return;
+		}
+		String script;
+		try {
+			script = info.getContent(null, null);
+		} catch (RuntimeException e) {
+			skipped++; // the URL of the script is an expression
+			return;
+		}
+		if (script == null) {
+			return;
+		}
+		// as GenericInterpreter.interpret prefixes it
+		String eachTime = pageDefinition.getLanguageDefinition()
+				.getEachTimeScript(language);
+		if (eachTime != null) {
+			script = eachTime + '\n' + script;
+		}
+		if (BSHInterpreter.precompile(script)) {
+			scripts++;
+		} else {
+			skipped++;
+		}
+	}
+}
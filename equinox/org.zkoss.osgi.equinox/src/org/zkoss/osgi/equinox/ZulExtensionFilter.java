@@ -10,6 +10,8 @@ import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 
+import org.osgi.framework.Bundle;
+import org.zkoss.common.zcommon.Activator;
 import org.zkoss.zk.ui.http.DHtmlLayoutServlet;
 
 /**
@@ -22,6 +24,7 @@ public class ZulExtensionFilter implements Filter {
 
 	private final DHtmlLayoutServlet loader;
 	private final String pathReal;
+	private final Bundle bundle;
 
 	/**
 	 * 
@@ -31,8 +34,24 @@ public class ZulExtensionFilter implements Filter {
 	 *            bundle related path
 	 */
 	public ZulExtensionFilter(DHtmlLayoutServlet loader, String pathReal) {
+		this(loader, pathReal, null);
+	}
+
+	/**
+	 * 
+	 * @param loader
+	 *            the zk layout servlet
+	 * @param pathReal
+	 *            bundle related path
+	 * @param bundle
+	 *            the bundle owning the pages, used as requesting bundle while
+	 *            a page is served. If null all the bundles are searched.
+	 */
+	public ZulExtensionFilter(DHtmlLayoutServlet loader, String pathReal,
+			Bundle bundle) {
 		this.loader = loader;
 		this.pathReal = pathReal;
+		this.bundle = bundle;
 	}
 
 	@Override
@@ -46,7 +65,12 @@ public class ZulExtensionFilter implements Filter {
 			HttpServletRequest httpRequest = (HttpServletRequest) request;
 			HttpServletRequestWrapper zkRequest = new HttpServletRequestWrapper(
 					httpRequest, false, this.pathReal);
-			loader.service(zkRequest, response);
+			Bundle old = Activator.setRequestingBundle(bundle);
+			try {
+				loader.service(zkRequest, response);
+			} finally {
+				Activator.setRequestingBundle(old);
+			}
 		}
 	}
 
@@ -0,0 +1,228 @@
+package org.zkoss.zk.scripting.bsh;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.zkoss.common.zcommon.Activator;
+import org.zkoss.common.zcommon.BundleClassCache;
+import org.zkoss.lang.Library;
+import org.zkoss.zk.scripting.bsh.BSHInterpreter.ParsedScript;
+import org.zkoss.zk.ui.Page;
+
+/**
+ * The parsed scripts are shared only where their nodes don't depend on the
+ * interpreter evaluating them.
+ *
+ * @author Mirko Bernardoni <mirko.bernardoniATgmail.com>
+ *
+ */
+public class BSHInterpreterTest {
+
+	/** The zscript of example2.zul, as the Zk parser gives it */
+	private static final String EXAMPLE2 = "//@IMPORT\n"
+			+ "\t//Import Here, remove this if you don't need it.\n"
+			+ "\timport org.zkoss.Version;\t\n"
+			+ "\timport org.zkoss.zul.Messagebox;\n"
+			+ "\t\n\t//@DECLARATION\n"
+			+ "\t//Declaration Here, remove this if you don't need it\n"
+			+ "\tvoid showMsg(){\n"
+			+ "\t\tString message = \"You are running ZK Successfully,"
+			+ " The ZK Version is \"+Version.UID;\n"
+			+ "\t\t//alert(message);\n"
+			+ "\t\t //org.zkoss.zul.Messagebox.show(message);\n"
+			+ "\t\tMessagebox.show(message);\n"
+			+ "\t}\n"
+			+ "\t\n\t//Other code, remove this if you don't need it\n"
+			+ "\tmain.setTitle(\"Hello ZK\");\n"
+			+ "\tmain.setBorder(\"normal\");\n\t;";
+	private static final String COMPACT = "org.zkoss.zk.scripting.bsh.serialization.compact";
+
+	@After
+	public void tearDown() {
+		Activator.setRequestingBundle(null);
+	}
+
+	@Test
+	public void scriptIsSharedByTheSameBundle() {
+		String script = "a = 1; b = a + 1;";
+		ClassLoader cl = getClass().getClassLoader();
+		Activator.setRequestingBundle(newBundle(1));
+		ParsedScript parsed = BSHInterpreter.getParsedScript(script, cl);
+		assertNotNull(parsed);
+		assertSame(parsed, BSHInterpreter.getParsedScript(script, cl));
+		Activator.setRequestingBundle(newBundle(2));
+		assertNotSame(parsed, BSHInterpreter.getParsedScript(script, cl));
+	}
+
+	@Test
+	public void scriptResolvingTypesIsShared() {
+		ClassLoader cl = getClass().getClassLoader();
+		assertNotNull(BSHInterpreter.getParsedScript(EXAMPLE2, cl));
+		assertNotNull(BSHInterpreter.getParsedScript("String s = \"a\";", cl));
+		assertNotNull(BSHInterpreter.getParsedScript("s = (String) null;", cl));
+		assertNotNull(BSHInterpreter.getParsedScript(
+				"for (int i = 0; i < 2; i++) { a = new int[i]; }", cl));
+		assertNotNull(BSHInterpreter.getParsedScript(
+				"try { a = 1; } catch (Exception e) { }", cl));
+		assertNull(BSHInterpreter.getParsedScript("class A { }", cl));
+	}
+
+	@Test
+	public void statefulNodesAreCopiedForEachEvaluation() {
+		ClassLoader cl = getClass().getClassLoader();
+		ParsedScript typed = BSHInterpreter.getParsedScript(EXAMPLE2, cl);
+		Object[] nodes = typed.newNodes();
+		Object[] other = typed.newNodes();
+		assertEquals(nodes.length, other.length);
+		assertSame(nodes[0], other[0]); // the imports keep nothing
+		assertNotSame(nodes[2], other[2]); // the method declaration
+		ParsedScript untyped = BSHInterpreter.getParsedScript("a = 1;", cl);
+		assertSame(untyped.newNodes(), untyped.newNodes());
+	}
+
+	@Test
+	public void scriptDeclaringMethodsIsPrecompiled() {
+		Activator.setRequestingBundle(newBundle(3));
+		assertTrue(BSHInterpreter.precompile(EXAMPLE2));
+		assertTrue(BSHInterpreter.precompile("int twice(int v) { return v * 2; }"));
+		assertFalse(BSHInterpreter.precompile("class A { }"));
+	}
+
+	@Test
+	public void methodIsResolvedByEachInterpreter() {
+		String script = "Date newDate() { return new Date(0L); }"
+				+ " Date twice(Date d) { return d; }"
+				+ " n = twice(newDate()).getClass().getName();";
+		BSHInterpreter sql = newInterpreter();
+		sql.exec("import java.sql.Date;");
+		sql.exec(script);
+		assertEquals("java.sql.Date", sql.get("n"));
+		BSHInterpreter util = newInterpreter();
+		util.exec("import java.util.Date;");
+		util.exec(script);
+		assertEquals("java.util.Date", util.get("n"));
+	}
+
+	@Test
+	public void typeIsResolvedByEachInterpreter() {
+		String script = "Date d = new Date(0L); n = d.getClass().getName();";
+		BSHInterpreter sql = newInterpreter();
+		sql.exec("import java.sql.Date;");
+		sql.exec(script);
+		assertEquals("java.sql.Date", sql.get("n"));
+		BSHInterpreter util = newInterpreter();
+		util.exec("import java.util.Date;");
+		util.exec(script);
+		assertEquals("java.util.Date", util.get("n"));
+	}
+
+	@Test
+	public void importIsKeptForEachBundle() {
+		String name = "java.util.ArrayList";
+		ClassLoader cl = getClass().getClassLoader();
+		BundleClassCache<?, ?> imports = getCache("org.zkoss.zk.scripting.bsh.imports");
+		Activator.setRequestingBundle(newBundle(1));
+		assertSame(ArrayList.class, BSHInterpreter.findImport(name, cl));
+		int size = imports.size();
+		assertSame(ArrayList.class, BSHInterpreter.findImport(name, cl));
+		assertEquals(size, imports.size());
+		Activator.setRequestingBundle(newBundle(2));
+		assertSame(ArrayList.class, BSHInterpreter.findImport(name, cl));
+		assertEquals(size + 1, imports.size());
+	}
+
+	@Test
+	public void namespaceIsWrittenInBothFormats() throws Exception {
+		String old = Library.getProperty(COMPACT);
+		try {
+			for (String compact : new String[] { "false", "true" }) {
+				Library.setProperty(COMPACT, compact);
+				BSHInterpreter interpreter = newInterpreter();
+				interpreter.exec("import java.lang.*; transient int t = 1;"
+						+ " v = \"value\"; n = 2L;");
+				BSHInterpreter copy = copy(interpreter);
+				assertEquals(compact, "value", copy.get("v"));
+				assertEquals(compact, Long.valueOf(2), copy.get("n"));
+				assertNull(compact, copy.get("t"));
+			}
+		} finally {
+			Library.setProperty(COMPACT, old);
+		}
+	}
+
+	private static BSHInterpreter copy(BSHInterpreter interpreter)
+			throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		interpreter.write(out, null);
+		out.close();
+		BSHInterpreter copy = newInterpreter();
+		copy.read(new ObjectInputStream(new ByteArrayInputStream(bytes
+				.toByteArray())));
+		return copy;
+	}
+
+	private static BundleClassCache<?, ?> getCache(String name) {
+		for (BundleClassCache<?, ?> cache : BundleClassCache.getCaches()) {
+			if (name.equals(cache.getName())) {
+				return cache;
+			}
+		}
+		throw new AssertionError(name);
+	}
+
+	private static BSHInterpreter newInterpreter() {
+		Page page = (Page) Proxy.newProxyInstance(
+				BSHInterpreterTest.class.getClassLoader(),
+				new Class<?>[] { Page.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						return method.getReturnType() == boolean.class ? Boolean.FALSE
+								: null;
+					}
+				});
+		BSHInterpreter interpreter = new BSHInterpreter();
+		interpreter.init(page, "java");
+		return interpreter;
+	}
+
+	private static Bundle newBundle(final long id) {
+		return (Bundle) Proxy.newProxyInstance(
+				BSHInterpreterTest.class.getClassLoader(),
+				new Class<?>[] { Bundle.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						String name = method.getName();
+						if ("getBundleId".equals(name)) {
+							return id;
+						}
+						if ("hashCode".equals(name)) {
+							return System.identityHashCode(proxy);
+						}
+						if ("equals".equals(name)) {
+							return proxy == args[0];
+						}
+						return "bundle " + id;
+					}
+				});
+	}
+}
@@ -0,0 +1,87 @@
+package org.zkoss.zk.scripting.bsh;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+import org.zkoss.zk.scripting.bsh.BSHInterpreter.ScopeIndex;
+import org.zkoss.zk.ui.AbstractComponent;
+import org.zkoss.zk.ui.Component;
+
+/**
+ * A change invalidates only the chains containing the component changed,
+ * and a chain dropped stops listening to its components.
+ *
+ * @author Mirko Bernardoni <mirko.bernardoniATgmail.com>
+ *
+ */
+public class ScopeIndexTest {
+
+	@Test
+	public void holderIsFound() {
+		ScopeIndex index = new ScopeIndex();
+		Component root = newComponent(null);
+		Component child = newComponent(root);
+		Component leaf = newComponent(child);
+		root.setAttribute("a", "root");
+		child.setAttribute("b", "child");
+		assertSame(root, index.getHolder(leaf, null, "a"));
+		assertSame(child, index.getHolder(leaf, null, "b"));
+		assertNull(index.getHolder(leaf, child, "b"));
+		assertNull(index.getHolder(leaf, null, "c"));
+		leaf.setAttribute("a", "leaf");
+		assertSame(leaf, index.getHolder(leaf, null, "a"));
+	}
+
+	@Test
+	public void onlyChainsOfTheChangedComponentAreInvalidated() {
+		ScopeIndex index = new ScopeIndex();
+		Component root = newComponent(null);
+		Component first = newComponent(root);
+		Component second = newComponent(root);
+		index.getHolder(first, null, "a");
+		index.getHolder(second, null, "a");
+		assertEquals(2, index.size());
+		first.setAttribute("a", "first");
+		assertEquals(1, index.size());
+		assertSame(first, index.getHolder(first, null, "a"));
+		root.setAttribute("b", "root");
+		assertEquals(0, index.size());
+	}
+
+	@Test
+	public void detachedTreeIsReleased() {
+		ScopeIndex index = new ScopeIndex();
+		Component root = newComponent(null);
+		Component child = newComponent(root);
+		Component leaf = newComponent(child);
+		index.getHolder(leaf, null, "a");
+		index.getHolder(root, null, "a");
+		assertEquals(3, index.getListenedCount());
+		child.setParent(null);
+		assertEquals(1, index.size());
+		assertEquals(1, index.getListenedCount());
+	}
+
+	@Test
+	public void evictedChainIsReleased() {
+		ScopeIndex index = new ScopeIndex();
+		Component root = newComponent(null);
+		for (int j = 0; j < 300; ++j) {
+			index.getHolder(newComponent(root), null, "a");
+		}
+		assertEquals(256, index.size());
+		assertEquals(257, index.getListenedCount());
+	}
+
+	private static Component newComponent(Component parent) {
+		Component component = new AbstractComponent() {
+			private static final long serialVersionUID = 1L;
+		};
+		if (parent != null) {
+			component.setParent(parent);
+		}
+		return component;
+	}
+}
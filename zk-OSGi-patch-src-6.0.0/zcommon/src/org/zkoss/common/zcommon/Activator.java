@@ -1,54 +1,78 @@
 package org.zkoss.common.zcommon;
 
+import java.io.File;
 import java.net.URL;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
-import java.util.Vector;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
-import org.osgi.framework.ServiceReference;
-import org.osgi.framework.wiring.BundleCapability;
-import org.osgi.framework.wiring.BundleRevision;
-import org.osgi.framework.wiring.BundleWiring;
-import org.osgi.service.log.LogService;
 
 /**
  * Manage the activation of zcommon and expose methods loading resource inside
- * an OSGi enviroment. The static methods assume that the bundle is activated.
+ * an OSGi enviroment. The static methods return null when the bundle is not
+ * active. They can be called by any thread while the bundle is started or
+ * stopped.
  * 
  * @author Mirko Bernardoni <mirko.bernardoniATgmail.com>
  * 
  */
 public class Activator implements BundleActivator {
 
-	private static BundleContext context = null;
-	private static LogService logger = null;
+	/** The current registry, null if the bundle is not active. */
+	private static volatile Registry registry = null;
+	/** The bundle owning the page served by the current thread. */
+	private static final ThreadLocal<Bundle> requestingBundle = new ThreadLocal<Bundle>();
 
 	public static BundleContext getContext() {
-		return Activator.context;
+		final Registry r = registry;
+		return r == null ? null : r.context;
 	}
 
 	@Override
 	public void start(BundleContext context) throws Exception {
-		Activator.context = context;
-		ServiceReference<?> logRef = null;
-		logRef = context.getServiceReference(LogService.class);
-		if (logRef == null) {
-			logRef = context.getServiceReference(LogService.class
-					.getCanonicalName());
-		}
-		if (logRef == null) {
-			logRef = context.getServiceReference(LogService.class.getName());
-		}
-		logger = (LogService) context.getService(logRef);
+		final Registry r = new Registry(context);
+		r.open();
+		registry = r;
 	}
 
 	@Override
 	public void stop(BundleContext context) throws Exception {
-		Activator.context = null;
+		final Registry r = registry;
+		registry = null;
+		if (r != null) {
+			r.close();
+		}
+	}
+
+	/**
+	 * Set the bundle owning the page served by the current thread. While it is
+	 * set, {@link #forName(String)} and {@link #getResource(String)} look first
+	 * through the wiring of the bundle and then in all the bundles.
+	 * 
+	 * @param bundle
+	 *            the requesting bundle, null to search all the bundles
+	 * @return the previous requesting bundle, to restore when done
+	 */
+	public static Bundle setRequestingBundle(Bundle bundle) {
+		Bundle old = requestingBundle.get();
+		if (bundle == null) {
+			requestingBundle.remove();
+		} else {
+			requestingBundle.set(bundle);
+		}
+		return old;
+	}
+
+	/**
+	 * Get the bundle owning the page served by the current thread
+	 * 
+	 * @return the requesting bundle or null
+	 */
+	public static Bundle getRequestingBundle() {
+		return requestingBundle.get();
 	}
 
 	/**
@@ -58,108 +82,211 @@ public class Activator implements BundleActivator {
 	 * @return set of URLs or null
 	 */
 	public static Enumeration<URL> getResources(String name) {
-		if(Activator.context == null) {
+		List<URL> resources = getResourceList(name);
+		return resources == null ? null : Collections.enumeration(resources);
+	}
+
+	/**
+	 * Get all resource in all bundle with the given name. The result is taken
+	 * from the resource index, it isn't copied so it can't be modified.
+	 * 
+	 * @param name
+	 * @return immutable list of URLs or null
+	 */
+	public static List<URL> getResourceList(String name) {
+		final Registry r = registry;
+		if (r == null) {
 			return null;
 		}
-		Vector<URL> resources = new Vector<URL>();
-		int pos = name.lastIndexOf('/');
-		if (pos < 0) {
-			pos = 0;
-		}
-		String path = pos == 0 ? "/" : name.substring(0, pos);
-		String file = pos == 0 ? name : name.substring(pos + 1, name.length());
-		for (Bundle bundle : context.getBundles()) {
-			try {
-				Enumeration<URL> urls = bundle.findEntries(path, file, false);// getResource(name);
-				if (urls != null) {
-					// resources.add(url);
-					resources.addAll(Collections.list(urls));
-				}
-			} catch (IllegalStateException e) {
-			}
-		}
-		if (logger != null) {
-			logger.log(LogService.LOG_DEBUG, "Resource name: " + name);
+		List<URL> resources = r.resourceIndex.getEntries(name);
+		if (r.debugable()) {
+			r.debug("Resource name: " + name);
 			StringBuilder sb = new StringBuilder("Resource loaded: ");
 			for (URL url : resources) {
 				sb.append(url.toString());
 				sb.append(", ");
 			}
-			logger.log(LogService.LOG_DEBUG, sb.toString());
+			r.debug(sb.toString());
 		}
-		return resources.elements();
+		return resources;
 	}
 
 	/**
-	 * Find a given resource
+	 * Get the file where what is read from a resource can be cached across
+	 * restarts. The file changes when the bundle containing the resource is
+	 * updated.
+	 * 
+	 * @param name
+	 *            the name given to {@link #getResources(String)}
+	 * @param url
+	 *            one of the URLs returned for the name
+	 * @return the file (it may not exist yet), or null if the resource was not
+	 *         found in a bundle or the files are not supported
+	 */
+	public static File getResourceCacheFile(String name, URL url) {
+		final Registry r = registry;
+		if (r == null) {
+			return null;
+		}
+		Bundle owner = r.resourceIndex.getOwner(name, url);
+		return owner == null ? null : r.entryCacheFiles.getFile(owner, url);
+	}
+
+	/**
+	 * Find a given resource. The wiring of the requesting bundle is searched
+	 * before all the bundles.
 	 * 
 	 * @param name
 	 * @return the URL loaded or null
 	 */
 	public static URL getResource(String name) {
-		if(Activator.context == null) {
+		final Registry r = registry;
+		if (r == null) {
 			return null;
 		}
-		for (Bundle bundle : context.getBundles()) {
-			try {
-				URL url = bundle.getResource(name);
-				if (url != null) {
-					if (logger != null) {
-						logger.log(LogService.LOG_DEBUG, "Resource name "
-								+ name + "<" + url + ">");
-					}
-					return url;
-				}
-			} catch (IllegalStateException e) {
-			}
+		final Bundle requester = requestingBundle.get();
+		URL url = requester == null ? null : r.wiringScopes.getResource(
+				requester, name);
+		if (url == null) {
+			url = r.resourceIndex.getResource(name);
 		}
-		return null;
+		if (url != null && r.debugable()) {
+			r.debug("Resource name " + name + "<" + url + ">");
+		}
+		return url;
 	}
 
 	/**
-	 * Load a class from the name using the OSGi way
+	 * Load a class from the name using the OSGi way. If there is a requesting
+	 * bundle, the class is loaded from the bundle providing its package to the
+	 * requesting bundle. Otherwise only the bundles exporting the package of
+	 * the class are asked, looking them up in the package index. The names not
+	 * found are remembered until a bundle changes, so a repeated miss doesn't
+	 * ask the bundles again. The exception thrown for a miss has no stack
+	 * trace.
 	 * 
 	 * @param clazz
 	 *            the class to load
-	 * @return the Class or null
+	 * @return the Class or null if the bundle is not active
 	 */
 	public static Class<?> forName(String clazz) throws ClassNotFoundException {
-		if(Activator.context == null) {
+		final Registry r = registry;
+		if (r == null) {
 			return null;
 		}
-		ClassNotFoundException notFoundEx = null;
-		int pos = clazz.lastIndexOf('.');
-		if (pos < 0) {
-			throw new ClassNotFoundException(clazz);
-		}
-		final String packageSearch = clazz.substring(0, pos);
-		for (Bundle bundle : context.getBundles()) {
-			BundleWiring bw = bundle.adapt(BundleWiring.class);
-			if (bw == null) {
-				continue;
+		Class<?> cls = findClass(r, clazz);
+		if (cls == null) {
+			throw ClassMissCache.newException(clazz);
+		}
+		return cls;
+	}
+
+	/**
+	 * Find a class as seen by a context class loader: the class is loaded with
+	 * the given loader, then with the zcommon class loader and at last from
+	 * the bundles as {@link #forName(String)} does. What the two loaders
+	 * resolve is remembered per loader, so a repeated lookup of the same name
+	 * doesn't throw ClassNotFoundException again.
+	 * 
+	 * @param loader
+	 *            the context class loader, or null
+	 * @param clazz
+	 *            the class to load
+	 * @return the Class or null if not found
+	 */
+	public static Class<?> findClass(ClassLoader loader, String clazz) {
+		final Registry r = registry;
+		if (r == null) {
+			Class<?> cls = loadClass(loader, clazz);
+			return cls != null ? cls : loadClass(
+					Activator.class.getClassLoader(), clazz);
+		}
+		Object resolved = r.resolvedClasses.get(loader, clazz);
+		if (resolved == null) {
+			final int generation = r.resolvedClasses.getGeneration();
+			Class<?> cls = loadClass(loader, clazz);
+			if (cls == null) {
+				cls = loadClass(Activator.class.getClassLoader(), clazz);
 			}
-			List<BundleCapability> capabilities = bw
-					.getCapabilities(BundleRevision.PACKAGE_NAMESPACE);
-			for (BundleCapability bc : capabilities) {
-				String packageName = (String) bc.getAttributes().get(
-						BundleRevision.PACKAGE_NAMESPACE);
-				if (packageSearch.equals(packageName)) {
-					try {
-						if (logger != null) {
-							logger.log(LogService.LOG_DEBUG, "Class loaded "
-									+ clazz);
-						}
-						return bundle.loadClass(clazz);
-					} catch (ClassNotFoundException e) {
-						notFoundEx = e;
-					}
+			r.resolvedClasses.put(loader, clazz, cls, generation);
+			if (cls != null) {
+				return cls;
+			}
+		} else if (resolved != ResolvedClasses.NOT_FOUND) {
+			return (Class<?>) resolved;
+		}
+		return findClass(r, clazz);
+	}
 
-				}
+	/**
+	 * Get the number of stale class loaders referenced by the classes
+	 * remembered by {@link #findClass(ClassLoader, String)}: the bundle class
+	 * loaders replaced by an update or a refresh. They are referenced weakly
+	 * and purged when the packages are refreshed, so a number that stays
+	 * above zero means that something else keeps using them.
+	 * 
+	 * @return the number of stale loaders, 0 if the bundle is not active
+	 */
+	public static int getStaleClassLoaderCount() {
+		final Registry r = registry;
+		return r == null ? 0 : r.resolvedClasses.getStaleLoaderCount();
+	}
+
+	/**
+	 * Get a number that changes every time the classes found by
+	 * {@link #forName(String)} and {@link #findClass(ClassLoader, String)} may
+	 * change: when a bundle is installed, resolved, unresolved, updated or
+	 * uninstalled and when the packages are refreshed. A caller keeping the
+	 * classes it found, or the names it didn't find, drops them when the number
+	 * changes.
+	 * 
+	 * @return the generation of the class lookups, 0 if the bundle is not
+	 *         active
+	 */
+	public static int getClassGeneration() {
+		final Registry r = registry;
+		return r == null ? 0 : r.classMisses.getGeneration()
+				+ r.resolvedClasses.getGeneration();
+	}
+
+	private static Class<?> loadClass(ClassLoader loader, String clazz) {
+		if (loader != null) {
+			try {
+				return Class.forName(clazz, true, loader);
+			} catch (ClassNotFoundException e) {
 			}
 		}
-		if (notFoundEx != null) {
-			throw notFoundEx;
+		return null;
+	}
+
+	/** Find a class in the bundles, returning null if not found */
+	private static Class<?> findClass(Registry r, String clazz) {
+		final Bundle requester = requestingBundle.get();
+		if (requester != null) {
+			Class<?> cls = r.wiringScopes.loadClass(requester, clazz);
+			if (cls != null) {
+				return cls;
+			}
+		}
+		final ClassMissCache misses = r.classMisses;
+		if (misses.isMissing(clazz)) {
+			return null;
 		}
-		throw new ClassNotFoundException(clazz);
+		final int generation = misses.getGeneration();
+		int pos = clazz.lastIndexOf('.');
+		if (pos >= 0) {
+			final String packageSearch = clazz.substring(0, pos);
+			for (Bundle bundle : r.packageIndex.getExporters(packageSearch)) {
+				try {
+					if (r.debugable()) {
+						r.debug("Class loaded " + clazz);
+					}
+					return bundle.loadClass(clazz);
+				} catch (ClassNotFoundException e) {
+				}
+			}
+		}
+		misses.addMissing(clazz, generation);
+		return null;
 	}
 }
@@ -0,0 +1,333 @@
+package org.zkoss.common.zcommon;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Member;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleReference;
+import org.zkoss.util.Cache;
+
+/**
+ * A cache whose keys reference classes, e.g. the methods found for a class
+ * and some argument types. The entries are kept in stripes, each one a least
+ * recently used map with its own lock, so request threads looking up
+ * different keys don't wait for each other and a warm up doesn't copy the
+ * whole cache at every put. When a bundle is unresolved, updated or
+ * uninstalled the entries referencing its classes are dropped, so the cache
+ * never keeps the class loader of an old bundle revision.
+ *
+ * <p>
+ * The hits, misses and evictions are counted, to check the size configured
+ * for a cache. The caches alive are listed by {@link #getCaches()}.
+ *
+ * @author Mirko Bernardoni <mirko.bernardoniATgmail.com>
+ *
+ * @param <K>
+ *            the key type
+ * @param <V>
+ *            the value type; the entries of a {@link Member}, a {@link Class}
+ *            or a {@link Key} value, or of an array of them, are dropped with
+ *            the bundles of its classes too
+ */
+public class BundleClassCache<K extends BundleClassCache.Key, V> implements
+		Cache<K, V> {
+
+	/** A key, or a value, referencing classes */
+	public interface Key {
+		/**
+		 * Get the classes referenced by the key. It is called only when a
+		 * bundle changes.
+		 *
+		 * @return the classes; an element can be null
+		 */
+		Class<?>[] getClasses();
+	}
+
+	private static final int STRIPES = 16;
+	/** The caches created, to drop the entries of a bundle */
+	private static final List<WeakReference<BundleClassCache<?, ?>>> caches = new CopyOnWriteArrayList<WeakReference<BundleClassCache<?, ?>>>();
+
+	private final String name;
+	private final Stripe[] stripes = new Stripe[STRIPES];
+	private volatile int maxSize;
+	private volatile int lifetime;
+
+	/**
+	 *
+	 * @param name
+	 *            the name of the cache, shown with its counters
+	 * @param maxSize
+	 *            the maximum number of entries
+	 * @param lifetime
+	 *            the milliseconds an entry is kept since it was put
+	 */
+	public BundleClassCache(String name, int maxSize, int lifetime) {
+		this.name = name;
+		this.maxSize = maxSize;
+		this.lifetime = lifetime;
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe(this);
+		}
+		caches.add(new WeakReference<BundleClassCache<?, ?>>(this));
+	}
+
+	private Stripe getStripe(Object key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return stripes[(h ^ (h >>> 4)) & (STRIPES - 1)];
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V get(Object key) {
+		final Stripe stripe = getStripe(key);
+		synchronized (stripe) {
+			Value<V> value = (Value<V>) stripe.get(key);
+			if (value != null) {
+				if (value.expires >= System.currentTimeMillis()) {
+					stripe.hits++;
+					return value.value;
+				}
+				stripe.remove(key);
+				stripe.evictions++;
+			}
+			stripe.misses++;
+			return null;
+		}
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V put(K key, V value) {
+		final Value<V> old;
+		final Stripe stripe = getStripe(key);
+		synchronized (stripe) {
+			old = (Value<V>) stripe.put(key, new Value<V>(value, System
+					.currentTimeMillis()
+					+ lifetime));
+		}
+		return old == null ? null : old.value;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V remove(Object key) {
+		final Value<V> old;
+		final Stripe stripe = getStripe(key);
+		synchronized (stripe) {
+			old = (Value<V>) stripe.remove(key);
+		}
+		return old == null ? null : old.value;
+	}
+
+	@Override
+	public void clear() {
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				stripe.clear();
+			}
+		}
+	}
+
+	@Override
+	public int getLifetime() {
+		return lifetime;
+	}
+
+	@Override
+	public void setLifetime(int lifetime) {
+		this.lifetime = lifetime;
+	}
+
+	@Override
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	@Override
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Get the caches not garbage collected yet
+	 *
+	 * @return the caches, in the order they were created
+	 */
+	public static List<BundleClassCache<?, ?>> getCaches() {
+		List<BundleClassCache<?, ?>> list = new ArrayList<BundleClassCache<?, ?>>();
+		for (WeakReference<BundleClassCache<?, ?>> ref : caches) {
+			BundleClassCache<?, ?> cache = ref.get();
+			if (cache != null) {
+				list.add(cache);
+			}
+		}
+		return list;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/** The number of entries */
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.size();
+			}
+		}
+		return size;
+	}
+
+	/** The number of lookups that found an entry */
+	public long getHitCount() {
+		long count = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				count += stripe.hits;
+			}
+		}
+		return count;
+	}
+
+	/** The number of lookups that didn't find an entry */
+	public long getMissCount() {
+		long count = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				count += stripe.misses;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * The number of entries dropped because the cache was full or they
+	 * expired. The entries dropped with a bundle are not counted.
+	 */
+	public long getEvictionCount() {
+		long count = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				count += stripe.evictions;
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public String toString() {
+		return name + "[size=" + size() + ", hits=" + getHitCount()
+				+ ", misses=" + getMissCount() + ", evictions="
+				+ getEvictionCount() + "]";
+	}
+
+	/** Drop the entries referencing a class of the bundle */
+	private void remove(Bundle bundle) {
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				for (Iterator<Map.Entry<Object, Value<?>>> it = stripe
+						.entrySet().iterator(); it.hasNext();) {
+					Map.Entry<Object, Value<?>> entry = it.next();
+					if (isOf(((Key) entry.getKey()).getClasses(), bundle)
+							|| isOf(entry.getValue().value, bundle)) {
+						it.remove();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drop the entries referencing a class of the bundle from all the caches.
+	 * Called when the bundle is unresolved, updated or uninstalled.
+	 */
+	static void removeAll(Bundle bundle) {
+		for (WeakReference<BundleClassCache<?, ?>> ref : caches) {
+			BundleClassCache<?, ?> cache = ref.get();
+			if (cache == null) {
+				caches.remove(ref);
+			} else {
+				cache.remove(bundle);
+			}
+		}
+	}
+
+	private static boolean isOf(Class<?>[] classes, Bundle bundle) {
+		for (Class<?> cls : classes) {
+			if (isOf(cls, bundle)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isOf(Object value, Bundle bundle) {
+		if (value instanceof Key) {
+			return isOf(((Key) value).getClasses(), bundle);
+		}
+		if (value instanceof Object[]) {
+			for (Object element : (Object[]) value) {
+				if (isOf(element, bundle)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		Class<?> cls = value instanceof Class<?> ? (Class<?>) value
+				: value instanceof Member ? ((Member) value)
+						.getDeclaringClass() : null;
+		if (cls == null) {
+			return false;
+		}
+		ClassLoader loader = cls.getClassLoader();
+		return loader instanceof BundleReference
+				&& ((BundleReference) loader).getBundle() == bundle;
+	}
+
+	private static class Value<V> {
+		private final V value;
+		private final long expires;
+
+		private Value(V value, long expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+
+	/** A least recently used map, locked by the caller */
+	private static class Stripe extends LinkedHashMap<Object, Value<?>> {
+		private static final long serialVersionUID = 1L;
+
+		private final BundleClassCache<?, ?> cache;
+		private long hits;
+		private long misses;
+		private long evictions;
+
+		private Stripe(BundleClassCache<?, ?> cache) {
+			super(16, 0.75f, true);
+			this.cache = cache;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Object, Value<?>> eldest) {
+			if (size() > Math.max(1, cache.maxSize / STRIPES)) {
+				evictions++;
+				return true;
+			}
+			return false;
+		}
+	}
+}
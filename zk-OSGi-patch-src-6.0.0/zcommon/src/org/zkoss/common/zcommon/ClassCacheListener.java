@@ -0,0 +1,27 @@
+package org.zkoss.common.zcommon;
+
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.SynchronousBundleListener;
+
+/**
+ * Drop the entries of the {@link BundleClassCache} instances referencing the
+ * classes of a bundle when the bundle is unresolved, updated or uninstalled.
+ *
+ * @author Mirko Bernardoni <mirko.bernardoniATgmail.com>
+ *
+ */
+class ClassCacheListener implements SynchronousBundleListener {
+
+	@Override
+	public void bundleChanged(BundleEvent event) {
+		switch (event.getType()) {
+		case BundleEvent.UNRESOLVED:
+		case BundleEvent.UPDATED:
+		case BundleEvent.UNINSTALLED:
+			BundleClassCache.removeAll(event.getBundle());
+			break;
+		default:
+			break;
+		}
+	}
+}
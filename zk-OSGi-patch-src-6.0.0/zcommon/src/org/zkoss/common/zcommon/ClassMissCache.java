@@ -0,0 +1,129 @@
+package org.zkoss.common.zcommon;
+
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.SynchronousBundleListener;
+import org.zkoss.lang.Library;
+import org.zkoss.util.Cache;
+import org.zkoss.util.MultiCache;
+
+/**
+ * Remember the class names that no bundle is able to load, so a repeated miss
+ * costs a cache probe instead of a lookup in all the exporting bundles. The
+ * cache is cleared every time a bundle is installed, resolved, unresolved or
+ * uninstalled because the set of loadable classes can change.
+ *
+ * <p>
+ * The maximum number of names is configured by the library property
+ * <code>org.zkoss.common.zcommon.classMiss.cache.maxSize</code> (default
+ * 1024).
+ *
+ * @author Mirko Bernardoni <mirko.bernardoniATgmail.com>
+ *
+ */
+class ClassMissCache implements SynchronousBundleListener {
+
+	private static final int STRIPES = 16;
+
+	private final Cache<String, Boolean> misses;
+	/** Incremented on every invalidation. */
+	private volatile int generation = 0;
+
+	ClassMissCache() {
+		this(new MultiCache<String, Boolean>(STRIPES, Math.max(1, Library
+				.getIntProperty(
+						"org.zkoss.common.zcommon.classMiss.cache.maxSize",
+						1024)
+				/ STRIPES), 4 * 60 * 60 * 1000));
+	}
+
+	/**
+	 *
+	 * @param misses
+	 *            the cache of the names
+	 */
+	ClassMissCache(Cache<String, Boolean> misses) {
+		this.misses = misses;
+	}
+
+	/**
+	 * Check if the class is known to be missing
+	 *
+	 * @param name
+	 *            the class name
+	 * @return true if the last lookup of the class failed and no bundle changed
+	 *         since then
+	 */
+	boolean isMissing(String name) {
+		return misses.get(name) != null;
+	}
+
+	/**
+	 * The current generation, to read before a lookup and to pass to
+	 * {@link #addMissing(String, int)}
+	 */
+	int getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Remember a missing class. The name is ignored if the cache was
+	 * invalidated after the lookup started.
+	 *
+	 * @param name
+	 *            the class name
+	 * @param lookupGeneration
+	 *            the generation read before starting the lookup
+	 */
+	void addMissing(String name, int lookupGeneration) {
+		if (lookupGeneration == generation) {
+			misses.put(name, Boolean.TRUE);
+			if (lookupGeneration != generation) {
+				misses.remove(name); // cleared between the check and the put
+			}
+		}
+	}
+
+	synchronized void clear() {
+		generation++;
+		misses.clear();
+	}
+
+	@Override
+	public void bundleChanged(BundleEvent event) {
+		switch (event.getType()) {
+		case BundleEvent.INSTALLED:
+		case BundleEvent.RESOLVED:
+		case BundleEvent.UNRESOLVED:
+		case BundleEvent.UNINSTALLED:
+			clear();
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Create the exception for a cached miss. The stack trace isn't filled
+	 * because the exception is used only to signal the miss.
+	 *
+	 * @param name
+	 *            the class name
+	 * @return the exception to throw
+	 */
+	static ClassNotFoundException newException(String name) {
+		return new MissingClassException(name);
+	}
+
+	private static class MissingClassException extends ClassNotFoundException {
+		private static final long serialVersionUID = 1L;
+
+		private MissingClassException(String name) {
+			super(name);
+		}
+
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package org.zkoss.common.zcommon;
+
+import java.io.File;
+import java.net.URL;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+
+/**
+ * Files in the persistent storage area of zcommon where what was read from a
+ * bundle entry can be kept across restarts. The name of a file is made of the
+ * bundle id, the bundle last modification time (including its fragments) and
+ * the entry path, so a file is never used for a different version of the
+ * entry. The files of the older versions are deleted.
+ * 
+ * @author Mirko Bernardoni <mirko.bernardoniATgmail.com>
+ * 
+ */
+class EntryCacheFiles {
+
+	private static final String DIRECTORY = "entries";
+
+	private final BundleContext context;
+
+	/**
+	 * 
+	 * @param context
+	 *            the zcommon bundle context
+	 */
+	EntryCacheFiles(BundleContext context) {
+		this.context = context;
+	}
+
+	/**
+	 * Get the cache file of an entry
+	 * 
+	 * @param owner
+	 *            the bundle containing the entry
+	 * @param url
+	 *            the entry URL
+	 * @return the file (it may not exist) or null if the framework has no file
+	 *         system support
+	 */
+	File getFile(Bundle owner, URL url) {
+		File dir = context.getDataFile(DIRECTORY);
+		if (dir == null || (!dir.isDirectory() && !dir.mkdirs())) {
+			return null;
+		}
+		final String prefix = owner.getBundleId() + "_";
+		final String suffix = "_" + toFileName(url.getPath());
+		final String name = prefix + Long.toHexString(getLastModified(owner))
+				+ suffix;
+		String[] files = dir.list();
+		if (files != null) {
+			for (String file : files) {
+				if (file.startsWith(prefix) && file.endsWith(suffix)
+						&& !file.equals(name)) {
+					new File(dir, file).delete(); // an older version
+				}
+			}
+		}
+		return new File(dir, name);
+	}
+
+	/** The last modification of the bundle and of its attached fragments */
+	private static long getLastModified(Bundle bundle) {
+		long lastModified = bundle.getLastModified();
+		BundleWiring bw = bundle.adapt(BundleWiring.class);
+		if (bw != null) {
+			for (BundleWire wire : bw
+					.getProvidedWires(BundleRevision.HOST_NAMESPACE)) {
+				lastModified = Math.max(lastModified, wire.getRequirerWiring()
+						.getBundle().getLastModified());
+			}
+		}
+		return lastModified;
+	}
+
+	private static String toFileName(String path) {
+		StringBuilder sb = new StringBuilder(path.length());
+		for (int i = 0; i < path.length(); i++) {
+			char c = path.charAt(i);
+			sb.append(Character.isLetterOrDigit(c) || c == '.' || c == '-' ? c
+					: '+');
+		}
+		return sb.toString();
+	}
+}
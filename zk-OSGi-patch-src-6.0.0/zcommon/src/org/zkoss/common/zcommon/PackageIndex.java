@@ -0,0 +1,136 @@
+package org.zkoss.common.zcommon;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.util.tracker.BundleTracker;
+
+/**
+ * Index of the packages exported by the resolved bundles. The index is built
+ * when a bundle reaches the RESOLVED state and it is updated when the bundle is
+ * unresolved or uninstalled, so a lookup by package name doesn't need to scan
+ * the wiring of every bundle.
+ *
+ * <p>
+ * The exporters of a package are kept ordered by bundle id, the same order
+ * used by {@link BundleContext#getBundles()}.
+ *
+ * @author Mirko Bernardoni <mirko.bernardoniATgmail.com>
+ *
+ */
+class PackageIndex extends BundleTracker<String[]> {
+
+	private static final int RESOLVED_MASK = Bundle.RESOLVED
+			| Bundle.STARTING | Bundle.ACTIVE | Bundle.STOPPING;
+	private static final Bundle[] NO_BUNDLES = new Bundle[0];
+
+	/** Package name to the exporting bundles (copy on write arrays). */
+	private final ConcurrentMap<String, Bundle[]> exporters = new ConcurrentHashMap<String, Bundle[]>();
+
+	/**
+	 *
+	 * @param context
+	 *            the bundle context used to track the bundles
+	 */
+	PackageIndex(BundleContext context) {
+		super(context, RESOLVED_MASK, null);
+	}
+
+	/**
+	 * Get the bundles exporting the given package
+	 *
+	 * @param packageName
+	 *            the package name
+	 * @return the exporters ordered by bundle id, never null. The array must
+	 *         not be modified.
+	 */
+	Bundle[] getExporters(String packageName) {
+		Bundle[] bundles = exporters.get(packageName);
+		return bundles != null ? bundles : NO_BUNDLES;
+	}
+
+	@Override
+	public String[] addingBundle(Bundle bundle, BundleEvent event) {
+		BundleWiring bw = bundle.adapt(BundleWiring.class);
+		if (bw == null) {
+			return null;
+		}
+		List<BundleCapability> capabilities = bw
+				.getCapabilities(BundleRevision.PACKAGE_NAMESPACE);
+		String[] packages = new String[capabilities.size()];
+		int i = 0;
+		for (BundleCapability bc : capabilities) {
+			String packageName = (String) bc.getAttributes().get(
+					BundleRevision.PACKAGE_NAMESPACE);
+			if (packageName != null) {
+				packages[i++] = packageName;
+				add(packageName, bundle);
+			}
+		}
+		if (i < packages.length) {
+			String[] trimmed = new String[i];
+			System.arraycopy(packages, 0, trimmed, 0, i);
+			packages = trimmed;
+		}
+		return packages;
+	}
+
+	@Override
+	public void removedBundle(Bundle bundle, BundleEvent event,
+			String[] packages) {
+		for (String packageName : packages) {
+			remove(packageName, bundle);
+		}
+	}
+
+	private synchronized void add(String packageName, Bundle bundle) {
+		Bundle[] old = exporters.get(packageName);
+		if (old == null) {
+			exporters.put(packageName, new Bundle[] { bundle });
+			return;
+		}
+		long id = bundle.getBundleId();
+		int pos = 0;
+		for (; pos < old.length; pos++) {
+			if (old[pos] == bundle) {
+				return; // the same package exported with more versions
+			}
+			if (old[pos].getBundleId() > id) {
+				break;
+			}
+		}
+		Bundle[] bundles = new Bundle[old.length + 1];
+		System.arraycopy(old, 0, bundles, 0, pos);
+		bundles[pos] = bundle;
+		System.arraycopy(old, pos, bundles, pos + 1, old.length - pos);
+		exporters.put(packageName, bundles);
+	}
+
+	private synchronized void remove(String packageName, Bundle bundle) {
+		Bundle[] old = exporters.get(packageName);
+		if (old == null) {
+			return;
+		}
+		for (int pos = 0; pos < old.length; pos++) {
+			if (old[pos] == bundle) {
+				if (old.length == 1) {
+					exporters.remove(packageName);
+				} else {
+					Bundle[] bundles = new Bundle[old.length - 1];
+					System.arraycopy(old, 0, bundles, 0, pos);
+					System.arraycopy(old, pos + 1, bundles, pos, old.length
+							- pos - 1);
+					exporters.put(packageName, bundles);
+				}
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package org.zkoss.common.zcommon;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.service.log.LogService;
+import org.osgi.util.tracker.ServiceTracker;
+import org.zkoss.util.logging.Log;
+
+/**
+ * The view of the framework used by the static methods of {@link Activator}
+ * while zcommon is active. All the fields are final and the instance is
+ * published through a volatile field, so request threads always see a
+ * registry completely opened or none at all.
+ * 
+ * @author Mirko Bernardoni <mirko.bernardoniATgmail.com>
+ * 
+ */
+final class Registry {
+	private static final Log log = Log.lookup(Activator.class);
+
+	final BundleContext context;
+	final PackageIndex packageIndex;
+	final ClassMissCache classMisses;
+	final ResourceIndex resourceIndex;
+	final WiringScopes wiringScopes;
+	final EntryCacheFiles entryCacheFiles;
+	final ResolvedClasses resolvedClasses;
+	private final ClassCacheListener classCacheListener;
+	private final ServiceTracker<LogService, LogService> logTracker;
+
+	/**
+	 * 
+	 * @param context
+	 *            the zcommon bundle context
+	 */
+	Registry(BundleContext context) {
+		this.context = context;
+		this.logTracker = new ServiceTracker<LogService, LogService>(context,
+				LogService.class, null);
+		this.packageIndex = new PackageIndex(context);
+		this.classMisses = new ClassMissCache();
+		this.resourceIndex = new ResourceIndex(context);
+		this.wiringScopes = new WiringScopes();
+		this.entryCacheFiles = new EntryCacheFiles(context);
+		this.resolvedClasses = new ResolvedClasses();
+		this.classCacheListener = new ClassCacheListener();
+	}
+
+	void open() {
+		logTracker.open();
+		context.addBundleListener(classMisses);
+		context.addBundleListener(resourceIndex);
+		context.addBundleListener(wiringScopes);
+		context.addBundleListener(resolvedClasses);
+		context.addFrameworkListener(resolvedClasses);
+		context.addBundleListener(classCacheListener);
+		packageIndex.open();
+	}
+
+	void close() {
+		packageIndex.close();
+		context.removeBundleListener(classCacheListener);
+		context.removeFrameworkListener(resolvedClasses);
+		context.removeBundleListener(resolvedClasses);
+		context.removeBundleListener(wiringScopes);
+		context.removeBundleListener(resourceIndex);
+		context.removeBundleListener(classMisses);
+		logTracker.close();
+	}
+
+	/**
+	 * Check if the debug messages are wanted, before building them. The level
+	 * is the one configured for the ZK logger of {@link Activator}, the
+	 * messages are sent to the log service.
+	 * 
+	 * @return true if the debug is enabled and there is a log service
+	 */
+	boolean debugable() {
+		return log.debugable() && logTracker.getService() != null;
+	}
+
+	/**
+	 * Log a debug message. The caller shall check {@link #debugable()} first.
+	 * 
+	 * @param message
+	 *            the message
+	 */
+	void debug(String message) {
+		LogService logger = logTracker.getService();
+		if (logger != null) {
+			logger.log(LogService.LOG_DEBUG, message);
+		}
+	}
+}
@@ -0,0 +1,290 @@
+package org.zkoss.common.zcommon;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleReference;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.framework.wiring.BundleWiring;
+import org.zkoss.lang.Library;
+
+/**
+ * Remember what a context class loader (and then the zcommon class loader)
+ * resolves for a class name: the class or the fact that neither of them can
+ * load it. The loaders are compared by identity, so a repeated lookup doesn't
+ * throw and catch ClassNotFoundException again.
+ *
+ * <p>
+ * The loaders and the classes are referenced weakly, so the cache never keeps
+ * a class loader alive, e.g. the one of a web application that was
+ * redeployed. The bundle class loaders that are no more the ones of the
+ * current bundle wiring (stale loaders) are purged when the packages are
+ * refreshed and when a bundle is unresolved, updated or uninstalled. The
+ * misses are dropped when a bundle is resolved because a dynamic import could
+ * see a new package.
+ *
+ * <p>
+ * The maximum number of names per loader is configured by the library
+ * property <code>org.zkoss.common.zcommon.resolvedClass.cache.maxSize</code>
+ * (default 4096).
+ *
+ * @author Mirko Bernardoni <mirko.bernardoniATgmail.com>
+ *
+ */
+class ResolvedClasses implements SynchronousBundleListener, FrameworkListener {
+
+	/** The value of a name that the loaders can't load */
+	static final Object NOT_FOUND = new Object();
+	/** The key of the lookups without a context class loader */
+	private static final Object NO_LOADER = new Object();
+
+	private final int maxSize;
+	/**
+	 * Loader (a LoaderKey or NO_LOADER) to class name to the class reference
+	 * or NOT_FOUND
+	 */
+	private final ConcurrentMap<Object, ConcurrentMap<String, Object>> loaders = new ConcurrentHashMap<Object, ConcurrentMap<String, Object>>();
+	/** The keys whose loader was garbage collected */
+	private final ReferenceQueue<ClassLoader> collected = new ReferenceQueue<ClassLoader>();
+	/** Incremented on every invalidation. */
+	private volatile int generation = 0;
+
+	ResolvedClasses() {
+		maxSize = Math.max(1, Library.getIntProperty(
+				"org.zkoss.common.zcommon.resolvedClass.cache.maxSize", 4096));
+	}
+
+	/**
+	 * Get what was resolved for a class name
+	 *
+	 * @param loader
+	 *            the context class loader, or null
+	 * @param name
+	 *            the class name
+	 * @return the class, {@link #NOT_FOUND} or null if the name wasn't looked
+	 *         up yet
+	 */
+	Object get(ClassLoader loader, String name) {
+		Map<String, Object> classes = loaders.get(loader == null ? NO_LOADER
+				: new LoaderKey(loader, null));
+		if (classes == null) {
+			return null;
+		}
+		Object resolved = classes.get(name);
+		return resolved instanceof Reference<?> ? ((Reference<?>) resolved)
+				.get() : resolved;
+	}
+
+	/**
+	 * The current generation, to read before a lookup and to pass to
+	 * {@link #put(ClassLoader, String, Class, int)}
+	 */
+	int getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Remember what was resolved for a class name. It is ignored if the cache
+	 * was invalidated after the lookup started.
+	 *
+	 * @param loader
+	 *            the context class loader, or null
+	 * @param name
+	 *            the class name
+	 * @param cls
+	 *            the class, or null if it wasn't found
+	 * @param lookupGeneration
+	 *            the generation read before starting the lookup
+	 */
+	void put(ClassLoader loader, String name, Class<?> cls,
+			int lookupGeneration) {
+		expunge();
+		final Object key = loader == null ? NO_LOADER : new LoaderKey(loader,
+				collected);
+		ConcurrentMap<String, Object> classes = loaders.get(key);
+		if (classes == null) {
+			classes = new ConcurrentHashMap<String, Object>();
+			ConcurrentMap<String, Object> old = loaders.putIfAbsent(key,
+					classes);
+			if (old != null) {
+				classes = old;
+			}
+		}
+		if (classes.size() >= maxSize) {
+			classes.clear();
+		}
+		classes.put(name, cls == null ? NOT_FOUND
+				: new WeakReference<Class<?>>(cls));
+		if (lookupGeneration != generation) {
+			classes.remove(name); // invalidated meanwhile
+		}
+	}
+
+	/**
+	 * Count the stale loaders still referenced by the cache: the bundle class
+	 * loaders that are no more the ones of the current wiring of their bundle.
+	 * It is zero after a purge, unless the loaders are used again.
+	 *
+	 * @return the number of stale loaders
+	 */
+	int getStaleLoaderCount() {
+		Map<ClassLoader, Boolean> stale = new IdentityHashMap<ClassLoader, Boolean>();
+		for (Map.Entry<Object, ConcurrentMap<String, Object>> entry : loaders
+				.entrySet()) {
+			Object key = entry.getKey();
+			if (key instanceof LoaderKey) {
+				ClassLoader loader = ((LoaderKey) key).get();
+				if (loader != null && isStale(loader)) {
+					stale.put(loader, Boolean.TRUE);
+				}
+			}
+			for (Object resolved : entry.getValue().values()) {
+				ClassLoader loader = getClassLoader(resolved);
+				if (loader != null && isStale(loader)) {
+					stale.put(loader, Boolean.TRUE);
+				}
+			}
+		}
+		return stale.size();
+	}
+
+	@Override
+	public void bundleChanged(BundleEvent event) {
+		switch (event.getType()) {
+		case BundleEvent.RESOLVED:
+			removeMisses();
+			break;
+		case BundleEvent.UNRESOLVED:
+		case BundleEvent.UPDATED:
+		case BundleEvent.UNINSTALLED:
+			purge();
+			break;
+		default:
+			break;
+		}
+	}
+
+	@Override
+	public void frameworkEvent(FrameworkEvent event) {
+		if (event.getType() == FrameworkEvent.PACKAGES_REFRESHED) {
+			purge();
+		}
+	}
+
+	private synchronized void removeMisses() {
+		generation++;
+		for (Map<String, Object> classes : loaders.values()) {
+			for (Iterator<Object> it = classes.values().iterator(); it
+					.hasNext();) {
+				if (it.next() == NOT_FOUND) {
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drop the lookups made with a stale loader, and the classes of a stale
+	 * loader or already collected
+	 */
+	synchronized void purge() {
+		generation++;
+		expunge();
+		for (Iterator<Map.Entry<Object, ConcurrentMap<String, Object>>> it = loaders
+				.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<Object, ConcurrentMap<String, Object>> entry = it.next();
+			Object key = entry.getKey();
+			if (key instanceof LoaderKey) {
+				ClassLoader loader = ((LoaderKey) key).get();
+				if (loader == null || isStale(loader)) {
+					it.remove();
+					continue;
+				}
+			}
+			for (Iterator<Object> cit = entry.getValue().values().iterator(); cit
+					.hasNext();) {
+				Object resolved = cit.next();
+				if (resolved != NOT_FOUND) {
+					ClassLoader loader = getClassLoader(resolved);
+					if (((Reference<?>) resolved).get() == null
+							|| (loader != null && isStale(loader))) {
+						cit.remove();
+					}
+				}
+			}
+		}
+	}
+
+	/** Drop the lookups of the loaders garbage collected */
+	private void expunge() {
+		for (Reference<? extends ClassLoader> ref; (ref = collected.poll()) != null;) {
+			loaders.remove(ref);
+		}
+	}
+
+	private static ClassLoader getClassLoader(Object resolved) {
+		if (resolved instanceof Reference<?>) {
+			Class<?> cls = (Class<?>) ((Reference<?>) resolved).get();
+			if (cls != null) {
+				return cls.getClassLoader();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Check if a loader is a bundle class loader that is no more the one of
+	 * the current wiring of its bundle
+	 */
+	private static boolean isStale(ClassLoader loader) {
+		if (!(loader instanceof BundleReference)) {
+			return false;
+		}
+		Bundle bundle = ((BundleReference) loader).getBundle();
+		if (bundle == null || bundle.getState() == Bundle.UNINSTALLED) {
+			return true;
+		}
+		BundleWiring bw = bundle.adapt(BundleWiring.class);
+		return bw == null || !bw.isCurrent() || bw.getClassLoader() != loader;
+	}
+
+	/**
+	 * A weak reference to a class loader, compared by identity. The keys used
+	 * to look up don't need a queue.
+	 */
+	private static class LoaderKey extends WeakReference<ClassLoader> {
+		private final int hash;
+
+		private LoaderKey(ClassLoader loader, ReferenceQueue<ClassLoader> queue) {
+			super(loader, queue);
+			hash = System.identityHashCode(loader);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o == this) {
+				return true;
+			}
+			if (!(o instanceof LoaderKey)) {
+				return false;
+			}
+			Object loader = get();
+			return loader != null && loader == ((LoaderKey) o).get();
+		}
+	}
+}
@@ -0,0 +1,275 @@
+package org.zkoss.common.zcommon;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.SynchronousBundleListener;
+
+/**
+ * Index of the resources found in the bundles of the framework. A resource
+ * name is searched in all the bundles the first time it is asked, then the
+ * result is kept until a bundle able to change it is installed, resolved,
+ * unresolved, updated or uninstalled. Only the entries affected by the bundle
+ * are dropped.
+ *
+ * @author Mirko Bernardoni <mirko.bernardoniATgmail.com>
+ *
+ */
+class ResourceIndex implements SynchronousBundleListener {
+
+	private static final long[] NO_IDS = new long[0];
+
+	private final BundleContext context;
+	/** Entry name to the entries found with Bundle.findEntries */
+	private final ConcurrentMap<String, Entries> entries = new ConcurrentHashMap<String, Entries>();
+	/** Resource name to the first resource found with Bundle.getResource */
+	private final ConcurrentMap<String, Located> resources = new ConcurrentHashMap<String, Located>();
+	/** Incremented on every invalidation. */
+	private volatile int generation = 0;
+
+	/**
+	 *
+	 * @param context
+	 *            the bundle context used to list the bundles
+	 */
+	ResourceIndex(BundleContext context) {
+		this.context = context;
+	}
+
+	/**
+	 * Get the entries with the given name in all the bundles
+	 *
+	 * @param name
+	 *            the entry name
+	 * @return the URLs ordered by bundle id; the list is immutable and it is
+	 *         shared between the callers
+	 */
+	List<URL> getEntries(String name) {
+		Entries found = entries.get(name);
+		if (found != null) {
+			return found.urls;
+		}
+		final int lookupGeneration = generation;
+		String path = getPath(name);
+		String file = getFile(name);
+		List<URL> urls = new ArrayList<URL>();
+		List<Bundle> owners = new ArrayList<Bundle>();
+		long[] ids = new long[4];
+		int nIds = 0;
+		for (Bundle bundle : context.getBundles()) {
+			try {
+				Enumeration<URL> en = bundle.findEntries(path, file, false);
+				if (en != null && en.hasMoreElements()) {
+					while (en.hasMoreElements()) {
+						urls.add(en.nextElement());
+						owners.add(bundle);
+					}
+					if (nIds == ids.length) {
+						long[] grown = new long[nIds * 2];
+						System.arraycopy(ids, 0, grown, 0, nIds);
+						ids = grown;
+					}
+					ids[nIds++] = bundle.getBundleId();
+				}
+			} catch (IllegalStateException e) {
+			}
+		}
+		long[] bundleIds = NO_IDS;
+		if (nIds > 0) {
+			bundleIds = new long[nIds];
+			System.arraycopy(ids, 0, bundleIds, 0, nIds);
+		}
+		found = new Entries(urls.isEmpty() ? Collections.<URL> emptyList()
+				: Collections.unmodifiableList(urls),
+				owners.toArray(new Bundle[owners.size()]), bundleIds);
+		if (lookupGeneration == generation) {
+			entries.put(name, found);
+			if (lookupGeneration != generation) {
+				entries.remove(name, found); // invalidated meanwhile
+			}
+		}
+		return found.urls;
+	}
+
+	/**
+	 * Get the bundle where an entry returned by {@link #getEntries(String)}
+	 * was found
+	 * 
+	 * @param name
+	 *            the entry name
+	 * @param url
+	 *            one of the URLs returned for the name
+	 * @return the bundle, or null if the URL is not (or no more) in the index
+	 */
+	Bundle getOwner(String name, URL url) {
+		Entries found = entries.get(name);
+		if (found == null) {
+			return null;
+		}
+		for (int i = 0; i < found.owners.length; i++) {
+			if (found.urls.get(i) == url) {
+				return found.owners[i];
+			}
+		}
+		String external = url.toExternalForm();
+		for (int i = 0; i < found.owners.length; i++) {
+			if (found.urls.get(i).toExternalForm().equals(external)) {
+				return found.owners[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Get the resource with the given name from the first bundle able to find
+	 * it
+	 *
+	 * @param name
+	 *            the resource name
+	 * @return the URL or null if no bundle has it
+	 */
+	URL getResource(String name) {
+		Located found = resources.get(name);
+		if (found != null) {
+			return found.url;
+		}
+		final int lookupGeneration = generation;
+		found = Located.NOT_FOUND;
+		for (Bundle bundle : context.getBundles()) {
+			try {
+				URL url = bundle.getResource(name);
+				if (url != null) {
+					found = new Located(url, bundle.getBundleId());
+					break;
+				}
+			} catch (IllegalStateException e) {
+			}
+		}
+		if (lookupGeneration == generation) {
+			resources.put(name, found);
+			if (lookupGeneration != generation) {
+				resources.remove(name, found); // invalidated meanwhile
+			}
+		}
+		return found.url;
+	}
+
+	@Override
+	public void bundleChanged(BundleEvent event) {
+		switch (event.getType()) {
+		case BundleEvent.INSTALLED:
+			added(event.getBundle(), false);
+			break;
+		case BundleEvent.RESOLVED:
+			added(event.getBundle(), true);
+			break;
+		case BundleEvent.UNRESOLVED:
+		case BundleEvent.UPDATED:
+		case BundleEvent.UNINSTALLED:
+			removed(event.getBundle());
+			break;
+		default:
+			break;
+		}
+	}
+
+	/** Drop the entries that the bundle could add to. */
+	private synchronized void added(Bundle bundle, boolean resolved) {
+		generation++;
+		final long id = bundle.getBundleId();
+		for (Iterator<String> it = entries.keySet().iterator(); it.hasNext();) {
+			String name = it.next();
+			try {
+				// an installed bundle is not resolved yet, findEntries would
+				// try to resolve it
+				if (resolved ? bundle.findEntries(getPath(name),
+						getFile(name), false) != null : bundle
+						.getEntry(name) != null) {
+					it.remove();
+				}
+			} catch (IllegalStateException e) {
+			}
+		}
+		for (Iterator<Located> it = resources.values().iterator(); it
+				.hasNext();) {
+			Located located = it.next();
+			if (located.url == null || located.bundleId > id) {
+				it.remove();
+			}
+		}
+	}
+
+	/** Drop the entries found in the bundle. */
+	private synchronized void removed(Bundle bundle) {
+		generation++;
+		final long id = bundle.getBundleId();
+		for (Iterator<Entries> it = entries.values().iterator(); it.hasNext();) {
+			if (it.next().contains(id)) {
+				it.remove();
+			}
+		}
+		for (Iterator<Map.Entry<String, Located>> it = resources.entrySet()
+				.iterator(); it.hasNext();) {
+			if (it.next().getValue().bundleId == id) {
+				it.remove();
+			}
+		}
+	}
+
+	private static String getPath(String name) {
+		int pos = name.lastIndexOf('/');
+		return pos <= 0 ? "/" : name.substring(0, pos);
+	}
+
+	private static String getFile(String name) {
+		int pos = name.lastIndexOf('/');
+		return pos <= 0 ? name : name.substring(pos + 1, name.length());
+	}
+
+	/** The entries with a name and the bundles containing them */
+	private static class Entries {
+		private final List<URL> urls;
+		/** The bundle of each URL */
+		private final Bundle[] owners;
+		/** Ascending, as returned by BundleContext.getBundles */
+		private final long[] bundleIds;
+
+		private Entries(List<URL> urls, Bundle[] owners, long[] bundleIds) {
+			this.urls = urls;
+			this.owners = owners;
+			this.bundleIds = bundleIds;
+		}
+
+		private boolean contains(long id) {
+			for (long bundleId : bundleIds) {
+				if (bundleId == id) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/** A resource and the bundle returning it */
+	private static class Located {
+		private static final Located NOT_FOUND = new Located(null, -1);
+
+		private final URL url;
+		private final long bundleId;
+
+		private Located(URL url, long bundleId) {
+			this.url = url;
+			this.bundleId = bundleId;
+		}
+	}
+}
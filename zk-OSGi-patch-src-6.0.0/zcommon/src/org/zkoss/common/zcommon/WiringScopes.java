@@ -0,0 +1,185 @@
+package org.zkoss.common.zcommon;
+
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+
+/**
+ * Resolve classes and resources the way a given bundle sees them: first the
+ * imported packages, then the packages of the required bundles and at last
+ * the bundle own packages. The packages visible from a bundle are read from
+ * its wiring once and kept until the bundle is unresolved, updated or
+ * uninstalled.
+ * 
+ * @author Mirko Bernardoni <mirko.bernardoniATgmail.com>
+ * 
+ */
+class WiringScopes implements SynchronousBundleListener {
+
+	/** Bundle id to the scope built from its current wiring */
+	private final ConcurrentMap<Long, Scope> scopes = new ConcurrentHashMap<Long, Scope>();
+
+	/**
+	 * Load a class through the wiring of a bundle
+	 * 
+	 * @param bundle
+	 *            the requesting bundle
+	 * @param clazz
+	 *            the class name
+	 * @return the class or null if the bundle can't see its package
+	 */
+	Class<?> loadClass(Bundle bundle, String clazz) {
+		int pos = clazz.lastIndexOf('.');
+		if (pos < 0) {
+			return null;
+		}
+		Scope scope = getScope(bundle);
+		if (scope == null) {
+			return null;
+		}
+		Bundle provider = scope.getProvider(clazz.substring(0, pos));
+		if (provider == null) {
+			return null;
+		}
+		try {
+			return provider.loadClass(clazz);
+		} catch (ClassNotFoundException e) {
+			return null;
+		} catch (IllegalStateException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Find a resource through the wiring of a bundle
+	 * 
+	 * @param bundle
+	 *            the requesting bundle
+	 * @param name
+	 *            the resource name
+	 * @return the URL or null if the bundle can't see the resource
+	 */
+	URL getResource(Bundle bundle, String name) {
+		Scope scope = getScope(bundle);
+		return scope == null ? null : scope.getResource(name);
+	}
+
+	private Scope getScope(Bundle bundle) {
+		final Long id = Long.valueOf(bundle.getBundleId());
+		Scope scope = scopes.get(id);
+		if (scope != null) {
+			if (scope.wiring.isCurrent()) {
+				return scope;
+			}
+			scopes.remove(id, scope); // refreshed
+		}
+		BundleWiring bw = bundle.adapt(BundleWiring.class);
+		if (bw == null) {
+			return null; // not resolved
+		}
+		scope = new Scope(bw);
+		Scope old = scopes.putIfAbsent(id, scope);
+		return old != null ? old : scope;
+	}
+
+	@Override
+	public void bundleChanged(BundleEvent event) {
+		switch (event.getType()) {
+		case BundleEvent.UNRESOLVED:
+		case BundleEvent.UPDATED:
+		case BundleEvent.UNINSTALLED:
+			scopes.remove(Long.valueOf(event.getBundle().getBundleId()));
+			break;
+		default:
+			break;
+		}
+	}
+
+	/** The packages and the resources visible from a bundle wiring */
+	private static class Scope {
+		private static final Object NOT_FOUND = new Object();
+		private static final int MAX_RESOURCES = 512;
+		private static final int MAX_PACKAGES = 4096;
+
+		private final Bundle bundle;
+		private final BundleWiring wiring;
+		/** Package name to the providing bundle, or NOT_FOUND */
+		private final ConcurrentMap<String, Object> providers = new ConcurrentHashMap<String, Object>();
+		/** Resource name to the URL, or NOT_FOUND */
+		private final ConcurrentMap<String, Object> resources = new ConcurrentHashMap<String, Object>();
+
+		private Scope(BundleWiring wiring) {
+			this.wiring = wiring;
+			this.bundle = wiring.getBundle();
+			// the order is the one used by the bundle class loader
+			for (BundleWire wire : wiring
+					.getRequiredWires(BundleRevision.PACKAGE_NAMESPACE)) {
+				addProvider(wire.getCapability(), wire.getProviderWiring()
+						.getBundle());
+			}
+			for (BundleWire wire : wiring
+					.getRequiredWires(BundleRevision.BUNDLE_NAMESPACE)) {
+				BundleWiring provider = wire.getProviderWiring();
+				for (BundleCapability bc : provider
+						.getCapabilities(BundleRevision.PACKAGE_NAMESPACE)) {
+					addProvider(bc, provider.getBundle());
+				}
+			}
+			for (BundleCapability bc : wiring
+					.getCapabilities(BundleRevision.PACKAGE_NAMESPACE)) {
+				addProvider(bc, bundle);
+			}
+		}
+
+		private void addProvider(BundleCapability bc, Bundle provider) {
+			String packageName = (String) bc.getAttributes().get(
+					BundleRevision.PACKAGE_NAMESPACE);
+			if (packageName != null && !providers.containsKey(packageName)) {
+				providers.put(packageName, provider);
+			}
+		}
+
+		private Bundle getProvider(String packageName) {
+			Object provider = providers.get(packageName);
+			if (provider == null) {
+				// a private package of the bundle?
+				List<URL> classes = wiring.findEntries(
+						packageName.replace('.', '/'), "*.class", 0);
+				provider = classes == null || classes.isEmpty() ? NOT_FOUND
+						: bundle;
+				if (providers.size() < MAX_PACKAGES) {
+					providers.put(packageName, provider);
+				}
+			}
+			return provider == NOT_FOUND ? null : (Bundle) provider;
+		}
+
+		private URL getResource(String name) {
+			Object url = resources.get(name);
+			if (url == null) {
+				try {
+					url = bundle.getResource(name);
+				} catch (IllegalStateException e) {
+					return null;
+				}
+				if (url == null) {
+					url = NOT_FOUND;
+				}
+				if (resources.size() >= MAX_RESOURCES) {
+					resources.clear();
+				}
+				resources.put(name, url);
+			}
+			return url == NOT_FOUND ? null : (URL) url;
+		}
+	}
+}
@@ -16,18 +16,22 @@ Copyright (C) 2001 Potix Corporation. All Rights Reserved.
  */
 package org.zkoss.lang;
 
+import java.lang.ref.WeakReference;
 import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Member;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import org.zkoss.math.BigDecimals;
 import org.zkoss.math.BigIntegers;
@@ -35,9 +39,10 @@ import org.zkoss.mesg.MCommon;
 import org.zkoss.mesg.Messages;
 import org.zkoss.util.Cache;
 import org.zkoss.util.IllegalSyntaxException;
-import org.zkoss.util.FastReadCache;
+import org.zkoss.util.MultiCache;
 import org.zkoss.util.logging.Log;
 import org.zkoss.common.zcommon.Activator;
+import org.zkoss.common.zcommon.BundleClassCache;
 
 /**
  * Utilities to handle java.lang.Class
@@ -96,12 +101,22 @@ public class Classes {
 		if (args == null || args.length == 0)
 			return cls.newInstance();
 
-		final Constructor[] cxs = cls.getConstructors();
-		Constructor cx = match(cxs, args, false);
-		if (cx == null)
-			cx = match(cxs, args, true);
-		if (cx != null)
-			return cx.newInstance(args);
+		final MatchInfo mi = new MatchInfo(cls, null, args);
+		Object cx = _matches.get(mi);
+		if (cx == null) {
+			final Constructor[] cxs = cls.getConstructors();
+			cx = match(cxs, mi.argClasses, false);
+			if (cx == null)
+				cx = match(cxs, mi.argClasses, true);
+			if (cx == null)
+				cx = NOT_FOUND;
+			_matches.put(mi, cx);
+		}
+		if (cx != NOT_FOUND) {
+			final Matched mt = (Matched) cx;
+			mt.cast(args);
+			return ((Constructor) mt.member).newInstance(args);
+		}
 
 		throw new NoSuchMethodException(cls.getName() + ": no constructor for "
 				+ Objects.toString(args));
@@ -111,11 +126,14 @@ public class Classes {
 	 * @param loosely
 	 *            whether to match Long with Integer and so on.
 	 */
-	private static Constructor match(Constructor[] cxs, Object[] args,
+	private static Matched match(Constructor[] cxs, Class<?>[] argClasses,
 			boolean loosely) {
-		for (int j = 0; j < cxs.length; ++j)
-			if (matched(cxs[j].getParameterTypes(), args, loosely))
-				return cxs[j];
+		for (int j = 0; j < cxs.length; ++j) {
+			final int[] casts = matched(cxs[j].getParameterTypes(), argClasses,
+					loosely);
+			if (casts != null)
+				return new Matched(cxs[j], casts);
+		}
 		return null;
 	}
 
@@ -123,84 +141,189 @@ public class Classes {
 	 * @param loosely
 	 *            whether to match Long with Integer and so on.
 	 */
-	private static Method match(Class<?> cls, String name, Object[] args,
-			boolean loosely) {
+	private static Matched match(Class<?> cls, String name,
+			Class<?>[] argClasses, boolean loosely) {
 		final Method[] ms = cls.getMethods();
 		for (int j = 0; j < ms.length; ++j) {
+			final int[] casts;
 			if (!ms[j].getName().equals(name)
-					|| !matched(ms[j].getParameterTypes(), args, loosely))
+					|| (casts = matched(ms[j].getParameterTypes(), argClasses,
+							loosely)) == null)
 				continue; // not found; next
 
 			if (Modifier.isPublic(ms[j].getDeclaringClass().getModifiers()))
-				return ms[j]; // found
+				return new Matched(ms[j], casts); // found
 			try {
-				return getMethodInPublic(cls, ms[j].getName(),
-						ms[j].getParameterTypes());
+				return new Matched(getMethodInPublic(cls, ms[j].getName(),
+						ms[j].getParameterTypes()), casts);
 			} catch (NoSuchMethodException ex) { // not found; next
 			}
 		}
 		return null;
 	}
 
-	private static boolean matched(Class[] types, Object[] args, boolean loosely) {
-		if (types.length == args.length) {
-			final Object[] argcvt = loosely ? new Object[args.length] : args;
-			boolean cvted = false;
-			for (int k = args.length;;) {
-				if (--k < 0) {
-					if (cvted)
-						System.arraycopy(argcvt, 0, args, 0, args.length);
-					// copy converted only if all matched
-					return true;
-				}
+	/**
+	 * Returns the casts of the arguments to the given types, or null if they
+	 * don't match. The casts are indexed by argument, and {@link #NO_CASTS} is
+	 * returned if no argument is cast.
+	 *
+	 * @param argClasses
+	 *            the classes of the arguments; an element is null for a null
+	 *            argument.
+	 */
+	private static int[] matched(Class<?>[] types, Class<?>[] argClasses,
+			boolean loosely) {
+		if (types.length != argClasses.length)
+			return null;
 
-				final Object arg = argcvt[k] = args[k];
-				final Class type = types[k];
-				if (arg == null)
-					if (type.isPrimitive())
-						break; // mismatch
-					else
-						continue; // matched
-
-				if (type.isInstance(arg)
-						|| (type.isPrimitive() && Primitives.toWrapper(type)
-								.isInstance(arg)))
+		int[] casts = NO_CASTS;
+		for (int k = 0; k < types.length; ++k) {
+			final Class<?> argClass = argClasses[k];
+			final Class<?> type = types[k];
+			if (argClass == null)
+				if (type.isPrimitive())
+					return null; // mismatch
+				else
 					continue; // matched
 
-				if (loosely) {
-					argcvt[k] = looselyCast(type, arg);
-					if (argcvt[k] != null) {
-						cvted = true;
-						continue; // matched
-					}
-				}
-				break; // mismatch
-			}
+			if (type.isAssignableFrom(argClass)
+					|| (type.isPrimitive() && ((Class<?>) Primitives
+							.toWrapper(type)).isAssignableFrom(argClass)))
+				continue; // matched
+
+			final int cast = loosely && Number.class.isAssignableFrom(argClass) ?
+				getCast(type) : CAST_NONE;
+			if (cast == CAST_NONE)
+				return null; // mismatch
+			if (casts == NO_CASTS)
+				casts = new int[types.length];
+			casts[k] = cast;
+		}
+		return casts;
+	}
+
+	/** The casts of {@link #matched}. */
+	private static final int CAST_NONE = 0, CAST_INT = 1, CAST_LONG = 2,
+		CAST_DOUBLE = 3, CAST_SHORT = 4, CAST_FLOAT = 5, CAST_BYTE = 6;
+	private static final int[] NO_CASTS = new int[0];
+
+	/** Returns the cast of a number to the given type. */
+	private static int getCast(Class type) {
+		if (type == Integer.class || type == int.class)
+			return CAST_INT;
+		if (type == Long.class || type == long.class)
+			return CAST_LONG;
+		if (type == Double.class || type == double.class)
+			return CAST_DOUBLE;
+		if (type == Short.class || type == short.class)
+			return CAST_SHORT;
+		if (type == Float.class || type == float.class)
+			return CAST_FLOAT;
+		if (type == Byte.class || type == byte.class)
+			return CAST_BYTE;
+		return CAST_NONE; // not castable
+	}
+
+	private static Object looselyCast(int cast, Number arg) {
+		switch (cast) {
+		case CAST_INT:
+			return Integer.valueOf(arg.intValue());
+		case CAST_LONG:
+			return Long.valueOf(arg.longValue());
+		case CAST_DOUBLE:
+			return Double.valueOf(arg.doubleValue());
+		case CAST_SHORT:
+			return Short.valueOf(arg.shortValue());
+		case CAST_FLOAT:
+			return Float.valueOf(arg.floatValue());
+		default: // CAST_BYTE
+			return Byte.valueOf(arg.byteValue());
+		}
+	}
+
+	/** The constructors and methods matched for the classes of the arguments.
+	 * The entries are dropped with the bundle of the class or of an argument.
+	 */
+	private static final BundleClassCache<MatchInfo, Object> _matches =
+		new BundleClassCache<MatchInfo, Object>(
+			"org.zkoss.lang.Classes.matchedMethods", Library.getIntProperty(
+					"org.zkoss.lang.Classes.methods.cache.maxSize", 600),
+			4 * 60 * 60 * 1000);
+
+	/** The constructor or method matched for some arguments,
+	 * and the casts to apply to them. */
+	private static class Matched implements BundleClassCache.Key {
+		private final Member member;
+		private final int[] casts;
+
+		private Matched(Member member, int[] casts) {
+			this.member = member;
+			this.casts = casts;
+		}
+		/** Casts the arguments in place. */
+		private void cast(Object[] args) {
+			for (int k = casts.length; --k >= 0;)
+				if (casts[k] != CAST_NONE)
+					args[k] = looselyCast(casts[k], (Number) args[k]);
+		}
+
+		/** The class declaring the member, which can be a superclass
+		 * of another bundle. */
+		public Class<?>[] getClasses() {
+			return new Class<?>[] {member.getDeclaringClass()};
 		}
-		return false;
 	}
 
-	private static Object looselyCast(Class type, Object arg) {
-		if (type == Integer.class || type == int.class) {
-			if (arg instanceof Number)
-				return new Integer(((Number) arg).intValue());
-		} else if (type == Long.class || type == long.class) {
-			if (arg instanceof Number)
-				return new Long(((Number) arg).longValue());
-		} else if (type == Double.class || type == double.class) {
-			if (arg instanceof Number)
-				return new Double(((Number) arg).doubleValue());
-		} else if (type == Short.class || type == short.class) {
-			if (arg instanceof Number)
-				return new Short(((Number) arg).shortValue());
-		} else if (type == Float.class || type == float.class) {
-			if (arg instanceof Number)
-				return new Float(((Number) arg).floatValue());
-		} else if (type == Byte.class || type == byte.class) {
-			if (arg instanceof Number)
-				return new Byte(((Number) arg).byteValue());
-		}
-		return null; // not castable
+	/** The key to match a constructor or method with the classes
+	 * of the arguments. */
+	private static class MatchInfo implements BundleClassCache.Key {
+		private final Class<?> cls;
+		/** The method name, or null for a constructor. */
+		private final String name;
+		/** The classes of the arguments; an element is null for null. */
+		private final Class<?>[] argClasses;
+		private final int hashCode;
+
+		private MatchInfo(Class<?> cls, String name, Object[] args) {
+			this.cls = cls;
+			this.name = name;
+			argClasses = new Class<?>[args.length];
+			int h = cls.hashCode() + (name != null ? name.hashCode() : 0);
+			for (int j = 0; j < args.length; ++j) {
+				if (args[j] != null)
+					argClasses[j] = args[j].getClass();
+				h = 31 * h + System.identityHashCode(argClasses[j]);
+			}
+			hashCode = h;
+		}
+
+		public int hashCode() {
+			return hashCode;
+		}
+
+		public Class<?>[] getClasses() {
+			final Class<?>[] classes = new Class<?>[argClasses.length + 1];
+			classes[0] = cls;
+			System.arraycopy(argClasses, 0, classes, 1, argClasses.length);
+			return classes;
+		}
+
+		public boolean equals(Object o) {
+			if (this == o)
+				return true;
+			if (!(o instanceof MatchInfo))
+				return false;
+
+			final MatchInfo mi = (MatchInfo) o;
+			if (hashCode != mi.hashCode || cls != mi.cls
+					|| !Objects.equals(name, mi.name)
+					|| argClasses.length != mi.argClasses.length)
+				return false;
+			for (int j = 0; j < argClasses.length; ++j)
+				if (argClasses[j] != mi.argClasses[j])
+					return false;
+			return true;
+		}
 	}
 
 	/**
@@ -284,8 +407,9 @@ public class Classes {
 	 * Returns the Class object of the specified class name, using the current
 	 * thread's context class loader.
 	 * <p>
-	 * It first tries Thread.currentThread().getContextClassLoader(), and then
-	 * {@link Classes}'s class loader if not found.
+	 * It first tries Thread.currentThread().getContextClassLoader(), then
+	 * {@link Classes}'s class loader, and at last the OSGi bundles
+	 * (see {@link Activator#forName}) if not found.
 	 * 
 	 * <p>
 	 * In additions, it handles the primitive types, such as int and double.
@@ -304,18 +428,20 @@ public class Classes {
 		if (cls != null)
 			return cls;
 
-		ClassLoader cl = Thread.currentThread().getContextClassLoader();
+		final Class<?> found = findByThread(clsName);
+		if (found == null)
+			throw new ClassNotFoundException(clsName);
+		return found;
+	}
+	/** Returns the class as {@link #forNameByThread} but null if not found.
+	 * The class loaders are asked by {@link Activator#findClass}, which
+	 * remembers what each context class loader resolved, so a repeated
+	 * lookup doesn't throw and catch ClassNotFoundException.
+	 */
+	private static Class<?> findByThread(String clsName) {
 		// Mirko Bernardoni: Patch for using in OSGi enviroment
-		if (cl != null)
-			try {
-				return Class.forName(clsName, true, cl);
-			} catch (ClassNotFoundException ex) { // ignore and try the other
-			}
-		try {
-			return Classes.class.forName(clsName);
-		} catch (ClassNotFoundException ex) { // ignore and try the other
-		}
-		return Activator.forName(clsName);
+		return Activator.findClass(
+			Thread.currentThread().getContextClassLoader(), clsName);
 	}
 
 	/**
@@ -328,8 +454,9 @@ public class Classes {
 	 */
 	public static final boolean existsByThread(String clsnm) {
 		try {
-			forNameByThread(clsnm);
-			return true;
+			clsnm = toInternalForm(clsnm);
+			return Primitives.toClass(clsnm) != null
+				|| findByThread(clsnm) != null;
 		} catch (Throwable ex) {
 			return false;
 		}
@@ -621,6 +748,36 @@ public class Classes {
 	 */
 	public static final MethodInfo parseMethod(String signature)
 			throws IllegalSyntaxException {
+		final MethodInfo mi = getMethodInfo(signature);
+		return new MethodInfo(mi.returnType, mi.method, mi.argTypes.clone(),
+				mi.argNames.clone(), mi.throwsEx);
+	}
+
+	/**
+	 * Returns the method information of a signature, parsed once and then
+	 * cached. The returned object is shared, so it must not be modified.
+	 */
+	private static final MethodInfo getMethodInfo(String signature)
+			throws IllegalSyntaxException {
+		MethodInfo mi = _sigs.get(signature);
+		if (mi == null)
+			_sigs.put(signature, mi = parseMethod0(signature));
+		return mi;
+	}
+
+	/** The parsed signatures. They don't reference any class, so they
+	 * are kept when a bundle is refreshed. */
+	private static final Cache<String, MethodInfo> _sigs;
+	static {
+		final int maxSize = Library.getIntProperty(
+			"org.zkoss.lang.Classes.methods.cache.maxSize", 600);
+		_sigs = new MultiCache<String, MethodInfo>(
+			8, Math.max(1, maxSize / 8), 4 * 60 * 60 * 1000);
+			//the size is of each of the 8 internal caches
+	}
+
+	private static final MethodInfo parseMethod0(String signature)
+			throws IllegalSyntaxException {
 		int len = signature.length();
 		int j = Strings.skipWhitespaces(signature, 0);
 		int k = Strings.anyOf(signature, "( \t\n\r", j);
@@ -725,18 +882,107 @@ public class Classes {
 	public static final Method getMethodBySignature(Class<?> cls,
 			String signature, Collection<String> params, ClassResolver resolver)
 			throws NoSuchMethodException, ClassNotFoundException {
-		MethodInfo mi = parseMethod(signature);
-
-		LinkedList<Class<?>> argTypes = new LinkedList<Class<?>>();
-		for (int i = 0; i < mi.argTypes.length; i++) {
-			final String clsnm = mi.argTypes[i];
-			argTypes.add(getClassOfSignature(resolver, clsnm));
-			if (params != null)
+		final MethodInfo mi = getMethodInfo(signature);
+		//the argument types are resolved by the resolver, or by the
+		//context class loader and then the requesting bundle if no resolver
+		final SignatureInfo sgi = resolver != null ?
+			new SignatureInfo(cls, signature, resolver, null):
+			new SignatureInfo(cls, signature,
+				Thread.currentThread().getContextClassLoader(),
+				Activator.getRequestingBundle());
+		Method m = _sigms.get(sgi);
+		if (m == null) {
+			final Class<?>[] argTypes = new Class<?>[mi.argTypes.length];
+			for (int i = 0; i < argTypes.length; i++)
+				argTypes[i] = getClassOfSignature(resolver, mi.argTypes[i]);
+			m = getMethodInPublic(cls, mi.method, argTypes);
+			_sigms.put(sgi.weaken(), m);
+		}
+		if (params != null)
+			for (int i = 0; i < mi.argNames.length; i++)
 				params.add(mi.argNames[i]); // param name found
+		return m;
+	}
+
+	/** The methods of the resolved signatures. An entry is dropped with
+	 * the bundle of the class or of the method, e.g. when it is refreshed.
+	 * The failures are not cached, since a resolver could find a class later.
+	 */
+	private static final BundleClassCache<SignatureInfo, Method> _sigms =
+		new BundleClassCache<SignatureInfo, Method>(
+			"org.zkoss.lang.Classes.signatureMethods", Library.getIntProperty(
+					"org.zkoss.lang.Classes.methods.cache.maxSize", 600),
+			4 * 60 * 60 * 1000);
+
+	/** The key of a resolved signature. The scope, i.e., the resolver or
+	 * the context class loader, and the requesting bundle, which
+	 * {@link Activator#findClass} searches when the context class loader
+	 * misses, are compared by identity. They are referenced
+	 * weakly by the keys put in the cache, so they are not kept alive by them.
+	 */
+	private static class SignatureInfo implements BundleClassCache.Key {
+		private final Class<?> cls;
+		private final String signature;
+		/** The scope and the bundle, or WeakReferences to them if cached
+		 * (see {@link #weaken}). */
+		private final Object scope, bundle;
+		private final int hashCode;
+
+		/**
+		 * @param bundle the requesting bundle, or null if the scope is
+		 * a resolver or there is none
+		 */
+		private SignatureInfo(Class<?> cls, String signature, Object scope,
+		Object bundle) {
+			this(cls, signature, scope, bundle, cls.hashCode()
+				+ signature.hashCode() + 31 * System.identityHashCode(scope)
+				+ System.identityHashCode(bundle));
+		}
+		private SignatureInfo(Class<?> cls, String signature, Object scope,
+		Object bundle, int hashCode) {
+			this.cls = cls;
+			this.signature = signature;
+			this.scope = scope;
+			this.bundle = bundle;
+			this.hashCode = hashCode;
+		}
+		/** Returns the key to put in the cache. */
+		private SignatureInfo weaken() {
+			return new SignatureInfo(cls, signature, weaken(scope),
+				weaken(bundle), hashCode);
+		}
+		private static Object weaken(Object o) {
+			return o != null ? new WeakReference<Object>(o): null;
 		}
+		/** Returns whether the objects, or the referents of their
+		 * WeakReferences, are the same. */
+		private static boolean same(Object a, Object b) {
+			if (a == null || b == null)
+				return a == b;
+			a = a instanceof WeakReference<?> ? ((WeakReference<?>) a).get(): a;
+			b = b instanceof WeakReference<?> ? ((WeakReference<?>) b).get(): b;
+			return a != null && a == b;
+		}
+
+		public int hashCode() {
+			return hashCode;
+		}
+
+		public Class<?>[] getClasses() {
+			return new Class<?>[] {cls};
+		}
+
+		public boolean equals(Object o) {
+			if (this == o)
+				return true;
+			if (!(o instanceof SignatureInfo))
+				return false;
 
-		return getMethodInPublic(cls, mi.method,
-				argTypes.toArray(new Class<?>[argTypes.size()]));
+			final SignatureInfo sgi = (SignatureInfo) o;
+			return hashCode == sgi.hashCode && cls.equals(sgi.cls)
+				&& signature.equals(sgi.signature)
+				&& same(scope, sgi.scope) && same(bundle, sgi.bundle);
+		}
 	}
 
 	/**
@@ -850,13 +1096,22 @@ public class Classes {
 		if (args == null)
 			return getMethodInPublic(cls, name, null);
 
-		Method mtd = match(cls, name, args, false);
+		final MatchInfo mi = new MatchInfo(cls, name, args);
+		Object mtd = _matches.get(mi);
 		if (mtd == null) {
-			mtd = match(cls, name, args, true);
+			mtd = match(cls, name, mi.argClasses, false);
+			if (mtd == null)
+				mtd = match(cls, name, mi.argClasses, true);
 			if (mtd == null)
-				throw newNoSuchMethodException(cls, name, args);
+				mtd = NOT_FOUND;
+			_matches.put(mi, mtd);
 		}
-		return mtd;
+		if (mtd == NOT_FOUND)
+			throw newNoSuchMethodException(cls, name, args);
+
+		final Matched mt = (Matched) mtd;
+		mt.cast(args);
+		return (Method) mt.member;
 	}
 
 	/**
@@ -947,8 +1202,9 @@ public class Classes {
 		return (Method) m;
 	}
 
-	private static Cache<AOInfo, Object> _closms = new FastReadCache<AOInfo, Object>(
-			Library.getIntProperty(
+	private static final BundleClassCache<AOInfo, Object> _closms =
+		new BundleClassCache<AOInfo, Object>(
+			"org.zkoss.lang.Classes.closeMethods", Library.getIntProperty(
 					"org.zkoss.lang.Classes.methods.cache.maxSize", 600),
 			4 * 60 * 60 * 1000);
 
@@ -1009,8 +1265,8 @@ public class Classes {
 	 * Returns all close methods that match the specified condition, or a
 	 * zero-length array if none is found.
 	 * <p>
-	 * Unlike {@link #getCloseMethod}, we don't cache the searched result, and
-	 * it won't throw any exception.
+	 * Unlike {@link #getCloseMethod}, it won't throw any exception.
+	 * The searched result is cached too.
 	 */
 	public static final Method[] getCloseMethods(Class<?> cls, String name,
 			Class<?>[] argTypes) {
@@ -1041,6 +1297,19 @@ public class Classes {
 			final String name, final Class<?>[] argTypes,
 			final boolean bySubclass) {
 		// assert argTypes != null: "Caller shall handle null";
+		final AOInfo aoi = new AOInfo(cls, name, argTypes,
+				bySubclass ? B_CLOSE_METHODS | B_BY_SUBCLASS : B_CLOSE_METHODS);
+		Method[] mtds = (Method[]) _closms.get(aoi);
+		if (mtds == null) {
+			mtds = searchCloseMethods(cls, name, argTypes, bySubclass);
+			_closms.put(aoi, mtds);
+		}
+		return mtds.length > 0 ? mtds.clone() : mtds;
+	}
+
+	private static final Method[] searchCloseMethods(final Class<?> cls,
+			final String name, final Class<?>[] argTypes,
+			final boolean bySubclass) {
 		final List<Method> mtds = new LinkedList<Method>();
 		final Method[] ms = cls.getMethods();
 		for (int j = 0; j < ms.length; ++j) {
@@ -1103,6 +1372,11 @@ public class Classes {
 	 * {@link #getCloseMethod}.
 	 */
 	private static final int B_BY_SUBCLASS = 0x1000;
+	/**
+	 * Used by {@link #getCloseMethods} to distiquish
+	 * {@link #getCloseMethod}.
+	 */
+	private static final int B_CLOSE_METHODS = 0x2000;
 
 	/**
 	 * Gets the specified accessible object, either a method or a field, by
@@ -1154,11 +1428,183 @@ public class Classes {
 		return ao;
 	}
 
-	private static Cache<AOInfo, AccessibleObject> _acsos = new FastReadCache<AOInfo, AccessibleObject>(
-			Library.getIntProperty(
+	private static final BundleClassCache<AOInfo, AccessibleObject> _acsos =
+		new BundleClassCache<AOInfo, AccessibleObject>(
+			"org.zkoss.lang.Classes.accessibleObjects", Library.getIntProperty(
 					"org.zkoss.lang.Classes.methods.cache.maxSize", 600),
 			4 * 60 * 60 * 1000);
 
+	/**
+	 * A function reading a property of an object.
+	 * @see #getGetter
+	 */
+	public static interface Getter {
+		/** Returns the value of the property of the specified object.
+		 * @exception SystemException if the getter method throws an
+		 * exception, or it can't be accessed.
+		 */
+		public Object get(Object obj);
+	}
+	/**
+	 * A function writing a property of an object.
+	 * @see #getSetter
+	 */
+	public static interface Setter {
+		/** Sets the value of the property of the specified object.
+		 * @exception SystemException if the setter method throws an
+		 * exception, or it can't be accessed.
+		 */
+		public void set(Object obj, Object value);
+	}
+
+	/**
+	 * Returns the function reading the specified property of the instances
+	 * of a class. The property is searched by
+	 * {@link #getAccessibleObject} with {@link #B_GET}, i.e., getBody(),
+	 * isBody(), body() and then the body field.
+	 *
+	 * <p>
+	 * Unlike invoking the object returned by {@link #getAccessibleObject},
+	 * the access check is suppressed once when the function is created
+	 * (if the security manager allows it), and the function is cached per
+	 * (class, property), so the caller doesn't need to cache it again.
+	 * The functions referencing a class of a bundle, including the superclass
+	 * declaring the property, are dropped when the bundle is refreshed.
+	 *
+	 * @param cls
+	 *            the class of the objects
+	 * @param name
+	 *            the property name
+	 * @exception NoSuchMethodException
+	 *                if neither the get method nor the field is found
+	 */
+	public static final Getter getGetter(Class<?> cls, String name)
+			throws NoSuchMethodException {
+		return (Getter) getAccessor(cls, name, null, B_GET);
+	}
+
+	/**
+	 * Returns the function writing the specified property of the instances
+	 * of a class. The property is searched by
+	 * {@link #getAccessibleObject} with {@link #B_SET}, i.e.,
+	 * setBody(valueType), body(valueType) and then the body field.
+	 * The function is cached as described in {@link #getGetter}.
+	 *
+	 * @param cls
+	 *            the class of the objects
+	 * @param name
+	 *            the property name
+	 * @param valueType
+	 *            the type of the value to set; null to denote any class
+	 * @exception NoSuchMethodException
+	 *                if neither the set method nor the field is found
+	 */
+	public static final Setter getSetter(Class<?> cls, String name,
+			Class<?> valueType) throws NoSuchMethodException {
+		return (Setter) getAccessor(cls, name, new Class<?>[] { valueType },
+				B_SET);
+	}
+
+	private static Object getAccessor(Class<?> cls, String name,
+			Class<?>[] argTypes, int flags) throws NoSuchMethodException {
+		final AOInfo aoi = new AOInfo(cls, name, argTypes, flags);
+		Object acs = _accessors.get(aoi);
+		if (acs == null) {
+			final AccessibleObject ao =
+				getAccessibleObject(cls, name, argTypes, flags);
+			acs = ao instanceof Method ? new MethodAccessor((Method) ao)
+				: new FieldAccessor((Field) ao);
+			_accessors.put(aoi, acs);
+		}
+		return acs;
+	}
+
+	private static final BundleClassCache<AOInfo, Object> _accessors =
+		new BundleClassCache<AOInfo, Object>(
+			"org.zkoss.lang.Classes.accessors", Library.getIntProperty(
+					"org.zkoss.lang.Classes.methods.cache.maxSize", 600),
+			4 * 60 * 60 * 1000);
+
+	/** Suppresses the access check of a copy of the specified object, so
+	 * the one cached by {@link #getAccessibleObject} is not changed.
+	 * If not allowed, the object is returned as it is.
+	 */
+	private static AccessibleObject toAccessible(AccessibleObject ao) {
+		try {
+			if (ao instanceof Method) {
+				final Method m = (Method) ao;
+				ao = m.getDeclaringClass().getDeclaredMethod(
+					m.getName(), m.getParameterTypes());
+			} else {
+				final Field f = (Field) ao;
+				ao = f.getDeclaringClass().getDeclaredField(f.getName());
+			}
+			ao.setAccessible(true);
+		} catch (Exception ex) { //SecurityException; keep ao
+			if (log.debugable())
+				log.debug("Unable to suppress the access check of " + ao, ex);
+		}
+		return ao;
+	}
+
+	private static class MethodAccessor
+	implements Getter, Setter, BundleClassCache.Key {
+		private final Method _method;
+
+		private MethodAccessor(Method method) {
+			_method = (Method) toAccessible(method);
+		}
+
+		public Object get(Object obj) {
+			try {
+				return _method.invoke(obj);
+			} catch (Exception ex) {
+				throw SystemException.Aide.wrap(ex);
+			}
+		}
+
+		public void set(Object obj, Object value) {
+			try {
+				_method.invoke(obj, value);
+			} catch (Exception ex) {
+				throw SystemException.Aide.wrap(ex);
+			}
+		}
+
+		public Class<?>[] getClasses() {
+			return new Class<?>[] {_method.getDeclaringClass()};
+		}
+	}
+
+	private static class FieldAccessor
+	implements Getter, Setter, BundleClassCache.Key {
+		private final Field _field;
+
+		private FieldAccessor(Field field) {
+			_field = (Field) toAccessible(field);
+		}
+
+		public Object get(Object obj) {
+			try {
+				return _field.get(obj);
+			} catch (Exception ex) {
+				throw SystemException.Aide.wrap(ex);
+			}
+		}
+
+		public void set(Object obj, Object value) {
+			try {
+				_field.set(obj, value);
+			} catch (Exception ex) {
+				throw SystemException.Aide.wrap(ex);
+			}
+		}
+
+		public Class<?>[] getClasses() {
+			return new Class<?>[] {_field.getDeclaringClass()};
+		}
+	}
+
 	private static final AccessibleObject myGetAcsObj(Class<?> cls,
 			String name, Class<?>[] argTypes, int flags)
 			throws NoSuchMethodException {
@@ -1230,7 +1676,7 @@ public class Classes {
 	}
 
 	/** The infomation of the access object. */
-	private static class AOInfo {
+	private static class AOInfo implements BundleClassCache.Key {
 		private Class<?> cls;
 		private String name;
 		private Class<?>[] argTypes;
@@ -1247,6 +1693,15 @@ public class Classes {
 			return cls.hashCode() + name.hashCode() + flags;
 		}
 
+		public Class<?>[] getClasses() {
+			final int len = argTypes != null ? argTypes.length : 0;
+			final Class<?>[] classes = new Class<?>[len + 1];
+			classes[0] = cls;
+			if (len > 0)
+				System.arraycopy(argTypes, 0, classes, 1, len);
+			return classes;
+		}
+
 		public boolean equals(Object o) {
 			if (this == o)
 				return true;
@@ -1430,168 +1885,218 @@ public class Classes {
 		if (cls.isInstance(val))
 			return val;
 
-		if (String.class == cls) {
+		if (String.class == cls)
 			return Objects.toString(val);
-		} else if (BigDecimal.class == cls) {
-			if (val == null) {
-				return null;
-			} else if (val instanceof Double) {
-				return new BigDecimal(((Double) val).doubleValue());
-			} else if (val instanceof Float) {
-				return new BigDecimal(((Float) val).doubleValue());
-			} else if (val instanceof BigInteger) {
-				return new BigDecimal((BigInteger) val);
-			} else if (val instanceof Number) {
-				return BigDecimals.toBigDecimal(((Number) val).intValue());
-			} else if (val instanceof String) {
-				return new BigDecimal((String) val);
-			} else if (val instanceof Date) {
-				return new BigDecimal(((Date) val).getTime());
-			}
-		} else if (Integer.class == cls || int.class == cls) {
-			if (val == null) {
-				return Integer.class == cls ? null : Objects.ZERO_INTEGER;
-			} else if (val instanceof Integer) { // int.class
-				return val;
-			} else if (val instanceof Number) {
-				return new Integer(((Number) val).intValue());
-			} else if (val instanceof String) {
-				return new Integer((String) val);
+
+		final Coercer coercer = _coercers.get(cls);
+		if (coercer != null) {
+			if (val == null)
+				return coercer.nullValue;
+			final Object ret = coercer.coerce(val);
+			if (ret != null)
+				return ret;
+		} else if (val == null) {
+			return null;
+		} else {
+			try {
+				return newInstance(cls, new Object[] { val });
+			} catch (Exception ex) {
+				final ClassCastException t = new ClassCastException(
+						Messages.get(MCommon.CLASS_NOT_COMPATIABLE,
+								new Object[] { val.getClass(), cls }));
+				t.initCause(ex);
+				throw t;
 			}
-		} else if (Boolean.class == cls || boolean.class == cls) {
-			if (val == null) {
-				return Boolean.class == cls ? null : Boolean.FALSE;
-			} else if (val instanceof Boolean) { // boolean.class
-				return val;
-			} else if (val instanceof String) {
-				return Boolean.valueOf((String) val);
-			} else if (val instanceof BigDecimal) {
-				return Boolean.valueOf(((BigDecimal) val).signum() != 0);
-			} else if (val instanceof BigInteger) {
-				return Boolean.valueOf(((BigInteger) val).signum() != 0);
-			} else if (val instanceof Number) {
-				return Boolean.valueOf(((Number) val).intValue() != 0);
-			} else {
+		}
+
+		throw new ClassCastException(Messages.get(
+				MCommon.CLASS_NOT_COMPATIABLE, new Object[] {
+						val != null ? val + "(" + val.getClass().getName()
+								+ ")" : "null", cls }));
+	}
+
+	/** Converts a non-null value to a given type.
+	 * It is a final class switching on the type, rather than a subclass
+	 * per type, so the call is not megamorphic when a grid coerces
+	 * its columns to different types.
+	 */
+	private static final class Coercer {
+		private static final int BIG_DECIMAL = 0, INTEGER = 1, BOOLEAN = 2,
+			SHORT = 3, LONG = 4, DOUBLE = 5, BIG_INTEGER = 6, FLOAT = 7,
+			BYTE = 8, CHARACTER = 9, DATE = 10, NUMBER = 11;
+
+		private final int type;
+		/** The value of null if nullable. */
+		private final Object nullValue;
+		/** The value of null if not nullable, or null to instantiate
+		 * the type. */
+		private final Object zero;
+
+		private Coercer(int type, Object nullValue, Object zero) {
+			this.type = type;
+			this.nullValue = nullValue;
+			this.zero = zero;
+		}
+		/** Returns the converted value, or null if it can't be converted.
+		 * The wrappers of the primitive types are created by valueOf,
+		 * so the cached values are not allocated.
+		 */
+		private Object coerce(Object val) {
+			switch (type) {
+			case BIG_DECIMAL:
+				if (val instanceof Double || val instanceof Float)
+					return new BigDecimal(((Number) val).doubleValue());
+				if (val instanceof BigInteger)
+					return new BigDecimal((BigInteger) val);
+				if (val instanceof Number) //no temporary BigInteger
+					return BigDecimal.valueOf(((Number) val).intValue());
+				if (val instanceof String)
+					return new BigDecimal((String) val);
+				if (val instanceof Date)
+					return BigDecimal.valueOf(((Date) val).getTime());
+				return null;
+			case INTEGER:
+				if (val instanceof Integer) // int.class
+					return val;
+				if (val instanceof Number)
+					return Integer.valueOf(((Number) val).intValue());
+				if (val instanceof String)
+					return Integer.valueOf((String) val);
+				return null;
+			case BOOLEAN:
+				if (val instanceof Boolean) // boolean.class
+					return val;
+				if (val instanceof String)
+					return Boolean.valueOf((String) val);
+				if (val instanceof BigDecimal)
+					return Boolean.valueOf(((BigDecimal) val).signum() != 0);
+				if (val instanceof BigInteger)
+					return Boolean.valueOf(((BigInteger) val).signum() != 0);
+				if (val instanceof Number)
+					return Boolean.valueOf(((Number) val).intValue() != 0);
 				return Boolean.TRUE; // non-null is true
-			}
-		} else if (Short.class == cls || short.class == cls) {
-			if (val == null) {
-				return Short.class == cls ? null : Objects.ZERO_SHORT;
-			} else if (val instanceof Short) { // short.class
-				return val;
-			} else if (val instanceof Number) {
-				return new Short(((Number) val).shortValue());
-			} else if (val instanceof String) {
-				return new Short((String) val);
-			}
-		} else if (Long.class == cls || long.class == cls) {
-			if (val == null) {
-				return Long.class == cls ? null : Objects.ZERO_LONG;
-			} else if (val instanceof Long) { // long.class
-				return val;
-			} else if (val instanceof Number) {
-				return new Long(((Number) val).longValue());
-			} else if (val instanceof String) {
-				return new Long((String) val);
-			} else if (val instanceof Date) {
-				return new Long(((Date) val).getTime());
-			}
-		} else if (Double.class == cls || double.class == cls) {
-			if (val == null) {
-				return Double.class == cls ? null : Objects.ZERO_DOUBLE;
-			} else if (val instanceof Double) { // double.class
-				return val;
-			} else if (val instanceof Number) {
-				return new Double(((Number) val).doubleValue());
-			} else if (val instanceof String) {
-				return new Double((String) val);
-			} else if (val instanceof Date) {
-				return new Double(((Date) val).getTime());
-			}
-		} else if (BigInteger.class == cls) {
-			if (val == null) {
+			case SHORT:
+				if (val instanceof Short) // short.class
+					return val;
+				if (val instanceof Number)
+					return Short.valueOf(((Number) val).shortValue());
+				if (val instanceof String)
+					return Short.valueOf((String) val);
 				return null;
-			} else if (val instanceof Integer) {
-				return BigIntegers.toBigInteger((Integer) val);
-			} else if (val instanceof Short) {
-				return BigIntegers.toBigInteger((Short) val);
-			} else if (val instanceof Byte) {
-				return BigIntegers.toBigInteger((Byte) val);
-			} else if (val instanceof Number) {
-				return BigIntegers.toBigInteger(((Number) val).longValue());
-			} else if (val instanceof String) {
-				return new BigInteger((String) val);
-			} else if (val instanceof Date) {
-				return BigIntegers.toBigInteger(((Date) val).getTime());
-			}
-		} else if (Float.class == cls || float.class == cls) {
-			if (val == null) {
-				return Float.class == cls ? null : Objects.ZERO_FLOAT;
-			} else if (val instanceof Float) { // float.class
-				return val;
-			} else if (val instanceof Number) {
-				return new Float(((Number) val).floatValue());
-			} else if (val instanceof String) {
-				return new Float((String) val);
-			} else if (val instanceof Date) {
-				return new Float(((Date) val).getTime());
-			}
-		} else if (Byte.class == cls || byte.class == cls) {
-			if (val == null) {
-				return Byte.class == cls ? null : Objects.ZERO_BYTE;
-			} else if (val instanceof Byte) { // byte.class
-				return val;
-			} else if (val instanceof Number) {
-				return new Byte(((Number) val).byteValue());
-			} else if (val instanceof String) {
-				return new Byte((String) val);
-			}
-		} else if (Character.class == cls || char.class == cls) {
-			if (val == null) {
-				return Character.class == cls ? null : Objects.NULL_CHARACTER;
-			} else if (val instanceof Character) { // character.class
-				return val;
-			} else if (val instanceof Number) {
-				return new Character((char) ((Number) val).shortValue());
-			} else if (val instanceof String) {
-				final String s = (String) val;
-				return s.length() > 0 ? new Character(s.charAt(0))
-						: Objects.NULL_CHARACTER;
-			}
-		} else if (Date.class == cls) {
-			if (val == null) {
+			case LONG:
+				if (val instanceof Long) // long.class
+					return val;
+				if (val instanceof Number)
+					return Long.valueOf(((Number) val).longValue());
+				if (val instanceof String)
+					return Long.valueOf((String) val);
+				if (val instanceof Date)
+					return Long.valueOf(((Date) val).getTime());
 				return null;
-			} else if (val instanceof Number) {
-				return new Date(((Number) val).longValue());
-			}
-		} else if (Number.class == cls) {
-			if (val == null) {
+			case DOUBLE:
+				if (val instanceof Double) // double.class
+					return val;
+				if (val instanceof Number)
+					return Double.valueOf(((Number) val).doubleValue());
+				if (val instanceof String)
+					return Double.valueOf((String) val);
+				if (val instanceof Date)
+					return Double.valueOf(((Date) val).getTime());
 				return null;
-			} else if (val instanceof String) {
-				return new BigDecimal((String) val);
-			} else if (val instanceof Date) {
-				return new BigDecimal(((Date) val).getTime());
-			}
-		} else {
-			if (val == null) {
+			case BIG_INTEGER:
+				if (val instanceof Integer)
+					return BigIntegers.toBigInteger((Integer) val);
+				if (val instanceof Short)
+					return BigIntegers.toBigInteger((Short) val);
+				if (val instanceof Byte)
+					return BigIntegers.toBigInteger((Byte) val);
+				if (val instanceof Number)
+					return BigIntegers.toBigInteger(((Number) val).longValue());
+				if (val instanceof String)
+					return new BigInteger((String) val);
+				if (val instanceof Date)
+					return BigIntegers.toBigInteger(((Date) val).getTime());
 				return null;
-			} else {
-				try {
-					return newInstance(cls, new Object[] { val });
-				} catch (Exception ex) {
-					final ClassCastException t = new ClassCastException(
-							Messages.get(MCommon.CLASS_NOT_COMPATIABLE,
-									new Object[] { val.getClass(), cls }));
-					t.initCause(ex);
-					throw t;
+			case FLOAT:
+				if (val instanceof Float) // float.class
+					return val;
+				if (val instanceof Number)
+					return Float.valueOf(((Number) val).floatValue());
+				if (val instanceof String)
+					return Float.valueOf((String) val);
+				if (val instanceof Date)
+					return Float.valueOf(((Date) val).getTime());
+				return null;
+			case BYTE:
+				if (val instanceof Byte) // byte.class
+					return val;
+				if (val instanceof Number)
+					return Byte.valueOf(((Number) val).byteValue());
+				if (val instanceof String)
+					return Byte.valueOf((String) val);
+				return null;
+			case CHARACTER:
+				if (val instanceof Character) // char.class
+					return val;
+				if (val instanceof Number)
+					return Character.valueOf((char) ((Number) val).shortValue());
+				if (val instanceof String) {
+					final String s = (String) val;
+					return s.length() > 0 ? Character.valueOf(s.charAt(0))
+							: Objects.NULL_CHARACTER;
 				}
+				return null;
+			case DATE:
+				if (val instanceof Number)
+					return new Date(((Number) val).longValue());
+				return null;
+			default: // NUMBER
+				if (val instanceof String)
+					return new BigDecimal((String) val);
+				if (val instanceof Date)
+					return BigDecimal.valueOf(((Date) val).getTime());
+				return null;
 			}
 		}
-
-		throw new ClassCastException(Messages.get(
-				MCommon.CLASS_NOT_COMPATIABLE, new Object[] {
-						val != null ? val + "(" + val.getClass().getName()
-								+ ")" : "null", cls }));
+	}
+	/** The coercer of each type, except String and the types converted
+	 * by constructor. It is never modified after initialized.
+	 */
+	private static final Map<Class<?>, Coercer> _coercers;
+	static {
+		final Map<Class<?>, Coercer> coercers =
+			new HashMap<Class<?>, Coercer>(32);
+		coercers.put(BigDecimal.class,
+			new Coercer(Coercer.BIG_DECIMAL, null, Objects.ZERO_BIG_DECIMAL));
+		coercers.put(BigInteger.class,
+			new Coercer(Coercer.BIG_INTEGER, null, Objects.ZERO_BIG_INTEGER));
+		coercers.put(Date.class, new Coercer(Coercer.DATE, null, null));
+		coercers.put(Number.class, new Coercer(Coercer.NUMBER, null, null));
+		putCoercers(coercers, Coercer.INTEGER, Integer.class, int.class,
+			Objects.ZERO_INTEGER);
+		putCoercers(coercers, Coercer.BOOLEAN, Boolean.class, boolean.class,
+			Boolean.FALSE);
+		putCoercers(coercers, Coercer.SHORT, Short.class, short.class,
+			Objects.ZERO_SHORT);
+		putCoercers(coercers, Coercer.LONG, Long.class, long.class,
+			Objects.ZERO_LONG);
+		putCoercers(coercers, Coercer.DOUBLE, Double.class, double.class,
+			Objects.ZERO_DOUBLE);
+		putCoercers(coercers, Coercer.FLOAT, Float.class, float.class,
+			Objects.ZERO_FLOAT);
+		putCoercers(coercers, Coercer.BYTE, Byte.class, byte.class,
+			Objects.ZERO_BYTE);
+		putCoercers(coercers, Coercer.CHARACTER, Character.class, char.class,
+			Objects.NULL_CHARACTER);
+		_coercers = coercers;
+	}
+	/** Puts the coercers of a wrapper and of its primitive type,
+	 * which converts null to zero.
+	 */
+	private static void putCoercers(Map<Class<?>, Coercer> coercers,
+	int type, Class<?> wrapper, Class<?> primitive, Object zero) {
+		coercers.put(wrapper, new Coercer(type, null, zero));
+		coercers.put(primitive, new Coercer(type, zero, zero));
 	}
 
 	/**
@@ -1610,26 +2115,9 @@ public class Classes {
 		if (nullable || val != null)
 			return coerce(cls, val);
 
-		if (BigDecimal.class == cls) {
-			return Objects.ZERO_BIG_DECIMAL;
-		} else if (Integer.class == cls || int.class == cls) {
-			return Objects.ZERO_INTEGER;
-		} else if (Boolean.class == cls || boolean.class == cls) {
-			return Boolean.FALSE;
-		} else if (Short.class == cls || short.class == cls) {
-			return Objects.ZERO_SHORT;
-		} else if (Long.class == cls || long.class == cls) {
-			return Objects.ZERO_LONG;
-		} else if (Double.class == cls || double.class == cls) {
-			return Objects.ZERO_DOUBLE;
-		} else if (Byte.class == cls || byte.class == cls) {
-			return Objects.ZERO_BYTE;
-		} else if (BigInteger.class == cls) {
-			return Objects.ZERO_BIG_INTEGER;
-		} else if (Float.class == cls || float.class == cls) {
-			return Objects.ZERO_FLOAT;
-		} else if (Character.class == cls || char.class == cls) {
-			return Objects.NULL_CHARACTER;
+		final Coercer coercer = _coercers.get(cls);
+		if (coercer != null && coercer.zero != null) {
+			return coercer.zero;
 		} else {
 			try {
 				return newInstance(cls, new Object[] { val });
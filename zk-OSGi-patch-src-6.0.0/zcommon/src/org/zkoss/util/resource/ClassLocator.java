@@ -16,20 +16,39 @@ Copyright (C) 2005 Potix Corporation. All Rights Reserved.
  */
 package org.zkoss.util.resource;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.LinkedHashSet;
-import java.util.Set;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.ref.WeakReference;
 import java.net.URL;
 
+import org.zkoss.lang.Library;
+import org.zkoss.util.Cache;
 import org.zkoss.util.CollectionsX;
+import org.zkoss.util.MultiCache;
 import org.zkoss.util.logging.Log;
 import org.zkoss.idom.Document;
 import org.zkoss.idom.Element;
@@ -58,35 +77,87 @@ public class ClassLocator implements XMLResourcesLocator {
 	}
 
 	// XMLResourcesLocator//
+	/**
+	 * Returns the resources found by the first class loader that has any of
+	 * them. It tries the current thread's context class loader, this class's
+	 * class loader, the system class loader and then all the bundles.
+	 * 
+	 * <p>
+	 * Which class loader answered is remembered for each name, together with
+	 * the resources found, so the following calls don't ask the class loaders
+	 * that had nothing. The resources found in the bundles are not kept here,
+	 * since they are cached (and refreshed) by {@link Activator}.
+	 */
 	public Enumeration<URL> getResources(String name) throws IOException {
 		name = resolveName(name);
-		ClassLoader cl = Thread.currentThread().getContextClassLoader();
+		final ClassLoader ctxcl = Thread.currentThread().getContextClassLoader();
+		final Located located = _located.get(name);
+		if (located != null && located.isFor(ctxcl)) {
+			if (located.urls != null)
+				return Collections.enumeration(located.urls);
+			return Activator.getResources(name);
+		}
+
+		ClassLoader cl = ctxcl;
 		if (cl != null) {
 			final Enumeration<URL> en = cl.getResources(name);
 			if (en.hasMoreElements())
-				return en;
+				return locate(name, ctxcl, en);
 		}
 		cl = ClassLocator.class.getClassLoader();
 		if (cl != null) {
 			final Enumeration<URL> en = cl.getResources(name);
 			if (en.hasMoreElements())
-				return en;
+				return locate(name, ctxcl, en);
 		}
 		// Mirko Bernardoni: Patch for using in OSGi enviroment
 		Enumeration<URL> en = ClassLoader.getSystemResources(name);
 		if (en.hasMoreElements()) {
-			return en;
+			return locate(name, ctxcl, en);
 		} else {
+			_located.put(name, new Located(ctxcl, null));
 			return Activator.getResources(name);
 		}		
 	}
+	/** Remembers the resources found by a class loader. */
+	private static Enumeration<URL> locate(String name, ClassLoader ctxcl,
+			Enumeration<URL> en) {
+		final List<URL> urls = Collections.unmodifiableList(Collections.list(en));
+		_located.put(name, new Located(ctxcl, urls));
+		return Collections.enumeration(urls);
+	}
+
+	/** Resource name to the resources located by {@link #getResources}. */
+	private static final Cache<String, Located> _located;
+	static {
+		final int maxSize = Library.getIntProperty(
+			"org.zkoss.util.resource.ClassLocator.resources.cache.maxSize", 512);
+		_located = new MultiCache<String, Located>(
+			8, Math.max(1, maxSize / 8), 4 * 60 * 60 * 1000);
+	}
+
+	/** The resources located with a given context class loader. */
+	private static class Located {
+		/** The context class loader (weak, not to keep an undeployed one). */
+		private final WeakReference<ClassLoader> ctxclRef;
+		/** The resources found, or null if they are searched in the bundles. */
+		private final List<URL> urls;
+
+		private Located(ClassLoader ctxcl, List<URL> urls) {
+			ctxclRef = ctxcl != null ? new WeakReference<ClassLoader>(ctxcl): null;
+			this.urls = urls;
+		}
+		/** Whether it was located with the given context class loader. */
+		private boolean isFor(ClassLoader ctxcl) {
+			return ctxclRef != null ? ctxclRef.get() == ctxcl: ctxcl == null;
+		}
+	}
 
 	public List<Resource> getDependentXMLResources(String name, String elName,
 			String elDepends) throws IOException {
 		final Map<String, XMLResource> rcmap = new LinkedHashMap<String, XMLResource>();
-		for (Enumeration<URL> en = getResources(name); en.hasMoreElements();) {
-			final URL url = en.nextElement();
-			final XMLResource xr = new XMLResource(url, elName, elDepends);
+		for (XMLResource xr: loadXMLResources(resolveName(name), getResources(name), elName, elDepends)) {
+				//the name getResources looked up, to find the owner of a URL
 			final XMLResource old = rcmap.put(xr.name, xr);
 			if (old != null)
 				log.warning("Replicate resource: " + xr.name + "\nOverwrite "
@@ -99,37 +170,187 @@ public class ClassLocator implements XMLResourcesLocator {
 		// if (rcmap.isEmpty() && log.debugable())
 		// log.debug("No resouce is found for "+name);
 
-		final List<Resource> rcs = new LinkedList<Resource>(); // a list of
-																// Document
-		final Set<String> resolving = new LinkedHashSet<String>();
-		// a set of names used to prevent dead-loop
-		while (!rcmap.isEmpty()) {
-			final Iterator<XMLResource> it = rcmap.values().iterator();
-			final XMLResource xr = it.next();
-			it.remove();
-			resolveDependency(xr, rcs, rcmap, resolving);
-			assert resolving.isEmpty();
+		final XMLResource[] xrs =
+			rcmap.values().toArray(new XMLResource[rcmap.size()]);
+		final List<Resource> rcs = new ArrayList<Resource>(xrs.length);
+		for (int j: resolveDependencies(xrs)) {
+			final XMLResource xr = xrs[j];
+			rcs.add(new Resource(xr.url, xr.document));
+			if (log.debugable())
+				log.debug("Adding resolved resource: " + xr.name);
 		}
 		return rcs;
 	}
 
-	private static void resolveDependency(XMLResource xr, List<Resource> rcs,
-			Map<String, XMLResource> rcmap, Set<String> resolving) {
-		if (!resolving.add(xr.name))
-			throw new IllegalStateException("Recusrive reference among "
-					+ resolving);
+	/** Loads the XML resources of the given URLs. If there are many of them,
+	 * they are parsed concurrently, but the returned list is always in the
+	 * same order of the URLs.
+	 */
+	private static List<XMLResource> loadXMLResources(final String name,
+			Enumeration<URL> en, final String elName, final String elDepends)
+	throws IOException {
+		final List<URL> urls = Collections.list(en);
+		final List<XMLResource> xrs = new ArrayList<XMLResource>(urls.size());
+		final int nThreads = Math.min(urls.size(), _parserThreads);
+		if (nThreads <= 1) {
+			for (URL url: urls)
+				xrs.add(loadXMLResource(name, url, elName, elDepends));
+			return xrs;
+		}
 
-		for (String nm : xr.depends) {
-			final XMLResource dep = rcmap.remove(nm);
-			if (dep != null) // not resolved yet
-				resolveDependency(dep, rcs, rcmap, resolving); // recusrively
+		final ClassLoader ctxcl = Thread.currentThread().getContextClassLoader();
+		final ExecutorService executor = Executors.newFixedThreadPool(nThreads,
+			new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					final Thread t = new Thread(r, "ClassLocator-parser");
+					t.setDaemon(true);
+					t.setContextClassLoader(ctxcl);
+						//the XML parser might be looked up with it
+					return t;
+				}
+			});
+		try {
+			final List<Future<XMLResource>> futures =
+				new ArrayList<Future<XMLResource>>(urls.size());
+			for (final URL url: urls)
+				futures.add(executor.submit(new Callable<XMLResource>() {
+					public XMLResource call() throws IOException {
+						return loadXMLResource(name, url, elName, elDepends);
+					}
+				}));
+			for (Future<XMLResource> future: futures)
+				xrs.add(getXMLResource(future));
+		} finally {
+			executor.shutdownNow(); //the pool is not kept (nor leaked) after loading
+		}
+		return xrs;
+	}
+	private static XMLResource getXMLResource(Future<XMLResource> future)
+	throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			final IOException ioex = new InterruptedIOException("Interrupted while loading");
+			ioex.initCause(ex);
+			throw ioex;
+		} catch (ExecutionException ex) {
+			final Throwable t = ex.getCause();
+			if (t instanceof IOException)
+				throw (IOException) t;
+			if (t instanceof RuntimeException)
+				throw (RuntimeException) t;
+			if (t instanceof Error)
+				throw (Error) t;
+			final IOException ioex = new IOException("Unable to load");
+			ioex.initCause(t);
+			throw ioex;
+		}
+	}
+	/** Loads the XML resource of the given URL. If the URL is an entry of
+	 * a bundle, the parsed resource is kept in a file of the framework
+	 * storage area, and read from there until the bundle is updated.
+	 * It can be disabled by setting the library property
+	 * org.zkoss.util.resource.ClassLocator.persistentCache to false.
+	 */
+	private static XMLResource loadXMLResource(String name, URL url,
+			String elName, String elDepends) throws IOException {
+		final File file = _persistentCache ?
+			Activator.getResourceCacheFile(name, url): null;
+		if (file != null) {
+			final XMLResource xr = XMLResource.read(file, url, elName, elDepends);
+			if (xr != null)
+				return xr;
 		}
+		final XMLResource xr = new XMLResource(url, elName, elDepends);
+		if (file != null)
+			xr.write(file, elName, elDepends);
+		return xr;
+	}
+	private static final boolean _persistentCache = !"false".equals(
+		Library.getProperty("org.zkoss.util.resource.ClassLocator.persistentCache"));
+
+	/** The maximal number of threads parsing the XML resources. */
+	private static final int _parserThreads = Library.getIntProperty(
+		"org.zkoss.util.resource.ClassLocator.parser.maxThreads",
+		Runtime.getRuntime().availableProcessors());
+
+	/** Returns the indexes of the given resources in the order they shall
+	 * be loaded: a resource comes after the resources it depends on, and
+	 * otherwise the given order is kept. The names of the resources that
+	 * are not found are ignored.
+	 *
+	 * <p>The graph is walked without recursion, so a long chain of
+	 * dependencies can't overflow the stack, and each resource and
+	 * dependency is visited once.
+	 *
+	 * @exception IllegalStateException if there is a cyclic dependency.
+	 * The message contains the names of the resources in the cycle.
+	 */
+	private static int[] resolveDependencies(XMLResource[] xrs) {
+		final int n = xrs.length;
+		final Map<String, Integer> indexes = new HashMap<String, Integer>(n * 2);
+		for (int j = 0; j < n; ++j)
+			indexes.put(xrs[j].name, Integer.valueOf(j));
 
-		rcs.add(new Resource(xr.url, xr.document));
-		resolving.remove(xr.name);
+		final int[][] edges = new int[n][];
+		for (int j = 0; j < n; ++j) {
+			final List<String> depends = xrs[j].depends;
+			final int[] es = new int[depends.size()];
+			int cnt = 0;
+			for (String nm: depends) {
+				final Integer k = indexes.get(nm);
+				if (k != null)
+					es[cnt++] = k.intValue();
+			}
+			edges[j] = cnt == es.length ? es: Arrays.copyOf(es, cnt);
+		}
 
-		if (log.debugable())
-			log.debug("Adding resolved resource: " + xr.name);
+		final byte[] states = new byte[n]; //0: new, 1: resolving, 2: resolved
+		final int[] stack = new int[n], nexts = new int[n];
+		final int[] order = new int[n];
+		int cnt = 0;
+		for (int root = 0; root < n; ++root) {
+			if (states[root] != 0)
+				continue;
+			int top = 0;
+			stack[top] = root;
+			nexts[top++] = 0;
+			states[root] = 1;
+			while (top > 0) {
+				final int j = stack[top - 1];
+				final int[] es = edges[j];
+				if (nexts[top - 1] < es.length) {
+					final int k = es[nexts[top - 1]++];
+					if (states[k] == 0) {
+						stack[top] = k;
+						nexts[top++] = 0;
+						states[k] = 1;
+					} else if (states[k] == 1) {
+						throw new IllegalStateException("Cyclic dependency: "
+							+ getCyclePath(xrs, stack, top, k));
+					}
+				} else {
+					--top;
+					states[j] = 2;
+					order[cnt++] = j;
+				}
+			}
+		}
+		return order;
+	}
+	/** Returns the names in the cycle starting and ending at the given
+	 * resource, which must be in the stack.
+	 */
+	private static String getCyclePath(XMLResource[] xrs, int[] stack,
+	int top, int k) {
+		int from = top;
+		while (stack[--from] != k)
+			;
+		final StringBuffer sb = new StringBuffer();
+		for (int j = from; j < top; ++j)
+			sb.append(xrs[stack[j]].name).append(" -> ");
+		return sb.append(xrs[k].name).toString();
 	}
 
 	/** Info used with getDependentXMLResource. */
@@ -170,6 +391,80 @@ public class ClassLocator implements XMLResourcesLocator {
 			}
 		}
 
+		private XMLResource(URL url, String name, List<String> depends,
+				Document document) {
+			this.url = url;
+			this.name = name;
+			this.depends = depends;
+			this.document = document;
+		}
+
+		/** Reads the resource stored in the given file by {@link #write},
+		 * or null if the file doesn't exist or it is not for the URL.
+		 */
+		@SuppressWarnings("unchecked")
+		private static XMLResource read(File file, URL url, String elName,
+				String elDepends) {
+			if (!file.isFile())
+				return null;
+			ObjectInputStream in = null;
+			try {
+				in = new ObjectInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+				if (!url.getPath().equals(in.readUTF())
+				|| !elName.equals(in.readUTF()) || !elDepends.equals(in.readUTF()))
+					return null; //overwritten when parsed
+				final String name = in.readUTF();
+				final List<String> depends = (List<String>)in.readObject();
+				final Document document = (Document)in.readObject();
+				if (log.debugable())
+					log.debug("Loading " + url + " from " + file);
+				return new XMLResource(url, name, depends, document);
+			} catch (Exception ex) {
+				log.warningBriefly("Ignored the cached resource " + file, ex);
+				return null;
+			} finally {
+				close(in);
+			}
+		}
+		/** Writes the resource to the given file, so it can be read back by
+		 * {@link #read}. A failure is only logged since the file is a cache.
+		 */
+		private void write(File file, String elName, String elDepends) {
+			ObjectOutputStream out = null;
+			File tmp = null;
+			try {
+				//write to a temporary file, so the file is either complete or missing
+				tmp = File.createTempFile("xml", ".tmp", file.getParentFile());
+				out = new ObjectOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tmp)));
+				out.writeUTF(url.getPath());
+				out.writeUTF(elName);
+				out.writeUTF(elDepends);
+				out.writeUTF(name);
+				out.writeObject(new ArrayList<String>(depends));
+				out.writeObject(document);
+				out.close();
+				out = null;
+				file.delete();
+				if (!tmp.renameTo(file))
+					tmp.delete();
+			} catch (Exception ex) {
+				log.warningBriefly("Unable to cache " + url + " in " + file, ex);
+				if (tmp != null)
+					tmp.delete();
+			} finally {
+				close(out);
+			}
+		}
+		private static void close(Closeable c) {
+			if (c != null)
+				try {
+					c.close();
+				} catch (IOException ex) { //ignore
+				}
+		}
+
 		public String toString() {
 			return "[" + name + ": " + url + " depends on " + depends + ']';
 		}
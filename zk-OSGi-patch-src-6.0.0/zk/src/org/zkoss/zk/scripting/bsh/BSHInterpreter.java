@@ -16,30 +16,58 @@ Copyright (C) 2006 Potix Corporation. All Rights Reserved.
 */
 package org.zkoss.zk.scripting.bsh;
 
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
 import java.io.Serializable;
 import java.io.Externalizable;
 import java.io.ObjectOutputStream;
 import java.io.ObjectInputStream;
 import java.io.IOException;
+import java.io.StringReader;
 
 import bsh.BshClassManager;
+import bsh.CallStack;
+import bsh.Parser;
 import bsh.NameSpace;
 import bsh.BshMethod;
 import bsh.Variable;
 import bsh.Primitive;
 import bsh.EvalError;
 import bsh.UtilEvalError;
+import bsh.InterpreterError;
+import bsh.TokenMgrError;
 
+import org.osgi.framework.Bundle;
+
+import org.zkoss.common.zcommon.Activator;
+import org.zkoss.common.zcommon.BundleClassCache;
 import org.zkoss.lang.Classes;
 import org.zkoss.lang.Library;
 import org.zkoss.lang.reflect.Fields;
+import org.zkoss.util.Cache;
+import org.zkoss.util.MultiCache;
 import org.zkoss.xel.Function;
 import org.zkoss.util.logging.Log;
 
+import org.zkoss.zk.ui.AbstractComponent;
 import org.zkoss.zk.ui.Executions;
 import org.zkoss.zk.ui.Execution;
 import org.zkoss.zk.ui.Page;
@@ -93,6 +121,10 @@ implements SerializableAware, HierachicalAware {
 	private static final String VAR_NSW = "z_bshnsw";
 	private bsh.Interpreter _ip;
 	private GlobalNS _bshns;
+	/** The class loader of {@link #_ip}; part of the key of the parsed scripts. */
+	private ClassLoader _cl;
+	/** The index of the component attributes looked up by the namespaces. */
+	private final ScopeIndex _scopeIndex = new ScopeIndex();
 
 	/*static {
 		bsh.Interpreter.LOCALSCOPING = false;
@@ -128,13 +160,393 @@ implements SerializableAware, HierachicalAware {
 	protected void exec(String script) {
 		try {
 			final Scope scope = getCurrent();
-			if (scope != null) _ip.eval(script, prepareNS(scope));
-			else _ip.eval(script); //unlikely (but just in case)
+			eval(script, scope != null ? prepareNS(scope): _bshns);
+				//_bshns if no scope: unlikely (but just in case)
 		} catch (EvalError ex) {
 			throw UiException.Aide.wrap(ex);
 		}
 	}
 
+	/** Evaluates the script as bsh.Interpreter.eval(String, NameSpace) does,
+	 * but with the nodes parsed by a previous evaluation if any.
+	 * The parsed script is shared by the interpreters of the same class loader
+	 * and the same requesting bundle ({@link Activator#getRequestingBundle}),
+	 * while the nodes keeping what they evaluate, the namespace and
+	 * the call stack are this evaluation's (see {@link ParsedScript}).
+	 */
+	private void eval(String script, NameSpace bshns) throws EvalError {
+		if (!script.endsWith(";"))
+			script += ';'; //as Interpreter.eval(String, NameSpace) does
+		final ParsedScript parsed = getParsedScript(script, _cl);
+		final Object[] nodes = parsed != null ? parsed.newNodes(): null;
+		if (nodes == null) {
+			_ip.eval(script, bshns);
+			return;
+		}
+
+		final String srcinfo = getSourceInfo(script);
+		final bsh.Interpreter ip = new bsh.Interpreter(
+			null, _ip.getOut(), _ip.getErr(), false, bshns, _ip, srcinfo);
+		final CallStack callstack = new CallStack(bshns);
+		for (int j = 0; j < nodes.length; ++j) {
+			final Object val;
+			try {
+				val = _evalNode.invoke(nodes[j], callstack, ip);
+			} catch (InvocationTargetException ex) {
+				final Throwable t = ex.getCause();
+				if (t instanceof EvalError)
+					((EvalError)t).reThrow("Sourced file: " + srcinfo);
+				if (t instanceof Error)
+					throw (Error)t;
+				throw new EvalError("Sourced file: " + srcinfo
+					+ (t instanceof InterpreterError ?
+						" internal Error: ": " unknown error: ")
+					+ t.getMessage(), null, callstack);
+			} catch (IllegalAccessException ex) {
+				throw UiException.Aide.wrap(ex);
+			}
+			if (callstack.depth() > 1) {
+				callstack.clear();
+				callstack.push(bshns);
+			}
+			if (_retctrl.isInstance(val))
+				break; //return statement
+		}
+	}
+	/** Returns the parsed script, or null if the script
+	 * shall be evaluated by BeanShell directly.
+	 */
+	/*package*/ static ParsedScript getParsedScript(String script, ClassLoader cl) {
+		if (_evalNode == null)
+			return null; //not supported by this BeanShell
+
+		final int gen = Activator.getClassGeneration();
+		if (gen != _scriptgen) { //a bundle changed
+			_scripts.clear();
+			_scriptgen = gen;
+		}
+		final Bundle bundle = Activator.getRequestingBundle();
+		final ScriptInfo si = new ScriptInfo(script, cl, bundle);
+		Object nodes = _scripts.get(si);
+		if (nodes == null) {
+			nodes = _precompiled.remove(new ScriptInfo(script, null, bundle));
+				//claimed by the first loader of the bundle
+			if (nodes == null)
+				nodes = parse(script);
+			_scripts.put(si.weaken(), nodes);
+			if (gen != Activator.getClassGeneration())
+				_scripts.remove(si); //changed meanwhile
+		}
+		return nodes != NOT_SHARED ? (ParsedScript)nodes: null;
+	}
+	/** Parses a script ahead of its first evaluation, e.g., the zscript of
+	 * the pages of a bundle when it starts.
+	 * The first interpreter evaluating the script with the same requesting
+	 * bundle ({@link Activator#getRequestingBundle}) then uses the parsed
+	 * nodes instead of parsing it; the interpreters of other bundles or
+	 * other class loaders parse it as usual.
+	 *
+	 * <p>The script must be the one passed to {@link #interpret},
+	 * i.e., prefixed with the each-time script of the language if any.
+	 *
+	 * @return whether the script will be evaluated from the parsed nodes;
+	 * false if it declares a class or has a syntax error, or if BeanShell
+	 * doesn't allow to share the nodes.
+	 */
+	public static boolean precompile(String script) {
+		if (_evalNode == null)
+			return false;
+
+		if (!script.endsWith(";"))
+			script += ';'; //as eval does
+		final ScriptInfo si =
+			new ScriptInfo(script, null, Activator.getRequestingBundle());
+		Object nodes = _precompiled.get(si);
+		if (nodes == null)
+			_precompiled.put(si.weaken(), nodes = parse(script));
+		return nodes != NOT_SHARED;
+	}
+	/** Parses the script into a {@link ParsedScript}, or returns
+	 * {@link #NOT_SHARED} if it declares a class or has a syntax error.
+	 * A declared class is a new class for each interpreter. A script with
+	 * a syntax error is left to BeanShell, which evaluates the statements
+	 * before the error and reports it.
+	 */
+	private static Object parse(String script) {
+		final String srcinfo = getSourceInfo(script);
+		final Parser parser = new Parser(new StringReader(script));
+		final List<Object> nodes = new LinkedList<Object>();
+		final Map<Object, Boolean> copied = new IdentityHashMap<Object, Boolean>();
+		try {
+			while (!parser.Line()) {
+				final Object node = parser.popNode();
+				if (node != null) {
+					if (declaresClass(node))
+						return NOT_SHARED;
+					markStateful(node, copied);
+					_setSourceFile.invoke(node, srcinfo);
+					nodes.add(node);
+				}
+			}
+		} catch (EvalError ex) { //ParseException
+			return NOT_SHARED;
+		} catch (TokenMgrError ex) {
+			return NOT_SHARED;
+		} catch (Exception ex) {
+			log.warningBriefly("Unable to share the parsed script", ex);
+			return NOT_SHARED;
+		}
+		return new ParsedScript(nodes.toArray(), copied);
+	}
+	private static boolean declaresClass(Object node) throws Exception {
+		if (node.getClass().getName().equals("bsh.BSHClassDeclaration"))
+			return true;
+		final Object[] children = (Object[])_children.get(node);
+		if (children != null)
+			for (int j = children.length; --j >= 0;)
+				if (children[j] != null && declaresClass(children[j]))
+					return true;
+		return false;
+	}
+	/** Puts the node into copied if it or one of its descendants
+	 * is stateful (see {@link #_stateful}).
+	 * @return whether the node was put
+	 */
+	private static boolean markStateful(Object node, Map<Object, Boolean> copied)
+	throws Exception {
+		boolean stateful = _stateful.contains(node.getClass().getName());
+		final Object[] children = (Object[])_children.get(node);
+		if (children != null)
+			for (int j = children.length; --j >= 0;)
+				if (children[j] != null && markStateful(children[j], copied))
+					stateful = true;
+		if (stateful)
+			copied.put(node, Boolean.TRUE);
+		return stateful;
+	}
+	/** The nodes writing their fields when evaluated: a type, a method or
+	 * a parameter keeps the class resolved, with the imports of the namespace
+	 * evaluating it, array dimensions keep the last sizes, and a for
+	 * statement its parts.
+	 */
+	private static final Set<String> _stateful = new HashSet<String>(
+		Arrays.asList(new String[] {"bsh.BSHType", "bsh.BSHMethodDeclaration",
+			"bsh.BSHFormalParameters", "bsh.BSHFormalParameter",
+			"bsh.BSHArrayDimensions", "bsh.BSHForStatement"}));
+	/** A parsed script, shared by the interpreters. Its nodes are never
+	 * evaluated: each evaluation gets a copy of the stateful nodes
+	 * and their ancestors, as a new parse would give, while
+	 * the other subtrees are shared since they keep nothing.
+	 * A copy shares the parent of a shared subtree, which BeanShell
+	 * only asks for the source file.
+	 */
+	/*package*/ static class ParsedScript {
+		private final Object[] _nodes;
+		/** The nodes to copy for each evaluation, by identity. */
+		private final Map<Object, Boolean> _copied;
+
+		private ParsedScript(Object[] nodes, Map<Object, Boolean> copied) {
+			_nodes = nodes;
+			_copied = copied;
+		}
+		/** Returns the nodes to evaluate, or null if they can't be copied. */
+		/*package*/ Object[] newNodes() {
+			if (_copied.isEmpty())
+				return _nodes;
+
+			try {
+				final Object[] nodes = new Object[_nodes.length];
+				for (int j = 0; j < nodes.length; ++j)
+					nodes[j] = copy(_nodes[j], null);
+				return nodes;
+			} catch (Exception ex) {
+				log.warningBriefly("Unable to copy the parsed script", ex);
+				return null;
+			}
+		}
+		private Object copy(Object node, Object parent) throws Exception {
+			if (!_copied.containsKey(node))
+				return node;
+
+			final Object copy = newNode(node);
+			if (parent != null)
+				_parent.set(copy, parent);
+			final Object[] children = (Object[])_children.get(node);
+			if (children != null) {
+				final Object[] cc = (Object[])Array.newInstance(
+					children.getClass().getComponentType(), children.length);
+				for (int j = 0; j < cc.length; ++j)
+					cc[j] = children[j] != null ? copy(children[j], copy): null;
+				_children.set(copy, cc);
+			}
+			return copy;
+		}
+	}
+	/** Returns a shallow copy of the node, which is never evaluated. */
+	private static Object newNode(Object node) throws Exception {
+		final Class<?> cls = node.getClass();
+		NodeClass nc = _nodeClasses.get(cls);
+		if (nc == null)
+			_nodeClasses.put(cls, nc = new NodeClass(cls));
+		final Object copy = nc.constructor.newInstance(new Object[] {
+			_id.get(node)});
+		for (int j = nc.fields.length; --j >= 0;)
+			nc.fields[j].set(copy, nc.fields[j].get(node));
+		return copy;
+	}
+	/** The constructor of a node class, SimpleNode(int id), and its
+	 * instance fields. */
+	private static class NodeClass {
+		private final Constructor<?> constructor;
+		private final Field[] fields;
+
+		private NodeClass(Class<?> cls) throws Exception {
+			constructor = cls.getDeclaredConstructor(new Class<?>[] {int.class});
+			constructor.setAccessible(true);
+			final List<Field> fs = new ArrayList<Field>();
+			for (Class<?> c = cls; c != null && c != Object.class;
+			c = c.getSuperclass()) {
+				final Field[] declared = c.getDeclaredFields();
+				for (int j = 0; j < declared.length; ++j)
+					if (!Modifier.isStatic(declared[j].getModifiers())) {
+						declared[j].setAccessible(true);
+						fs.add(declared[j]);
+					}
+			}
+			fields = fs.toArray(new Field[fs.size()]);
+		}
+	}
+	/** Node class to its {@link NodeClass}. */
+	private static final Map<Class<?>, NodeClass> _nodeClasses =
+		new ConcurrentHashMap<Class<?>, NodeClass>();
+	/** Returns the source file info that BeanShell gives an inline
+	 * evaluation.
+	 */
+	private static String getSourceInfo(String script) {
+		String s = script.replace('\n', ' ').replace('\r', ' ');
+		if (s.length() > 80)
+			s = s.substring(0, 80) + " . . . ";
+		return "inline evaluation of: ``" + s + "''";
+	}
+
+	/** The parsed scripts: {@link ScriptInfo} to the {@link ParsedScript}
+	 * or {@link #NOT_SHARED}. They are cleared when
+	 * {@link Activator#getClassGeneration} changes.
+	 */
+	private static final Cache<ScriptInfo, Object> _scripts =
+		new MultiCache<ScriptInfo, Object>(8, Math.max(1, Library.getIntProperty(
+				"org.zkoss.zk.scripting.bsh.script.cache.maxSize", 500) / 8),
+				//the size is of each of the 8 internal caches
+			4 * 60 * 60 * 1000);
+	/** The scripts parsed by {@link #precompile}, not evaluated yet:
+	 * {@link ScriptInfo} without the loader to the {@link ParsedScript} or
+	 * {@link #NOT_SHARED}.
+	 * They are kept until an interpreter claims them, or they are evicted.
+	 */
+	private static final Cache<ScriptInfo, Object> _precompiled =
+		new MultiCache<ScriptInfo, Object>(8, Math.max(1, Library.getIntProperty(
+				"org.zkoss.zk.scripting.bsh.precompile.cache.maxSize", 500) / 8),
+				//the size is of each of the 8 internal caches
+			Integer.MAX_VALUE);
+	/** The generation of {@link #_scripts}. */
+	private static volatile int _scriptgen = Activator.getClassGeneration();
+	private static final Object NOT_SHARED = new Object();
+	/** SimpleNode.eval(CallStack, Interpreter) and setSourceFile(String),
+	 * the fields SimpleNode.children, parent and id, and the ReturnControl
+	 * class. _evalNode is null if this BeanShell doesn't have them.
+	 */
+	private static final Method _evalNode, _setSourceFile;
+	private static final Field _children, _parent, _id;
+	private static final Class<?> _retctrl;
+	static {
+		Method eval = null, setsrc = null;
+		Field children = null, parent = null, id = null;
+		Class<?> retctrl = null;
+		try {
+			final ClassLoader cl = Parser.class.getClassLoader();
+			final Class<?> nodecls = Class.forName("bsh.SimpleNode", true, cl);
+			eval = nodecls.getMethod("eval",
+				new Class<?>[] {CallStack.class, bsh.Interpreter.class});
+			eval.setAccessible(true);
+			setsrc = nodecls.getMethod("setSourceFile",
+				new Class<?>[] {String.class});
+			setsrc.setAccessible(true);
+			children = nodecls.getDeclaredField("children");
+			children.setAccessible(true);
+			parent = nodecls.getDeclaredField("parent");
+			parent.setAccessible(true);
+			id = nodecls.getDeclaredField("id");
+			id.setAccessible(true);
+			retctrl = Class.forName("bsh.ReturnControl", true, cl);
+		} catch (Throwable ex) { //in case of upgrading to new bsh
+			log.warningBriefly("Scripts are parsed for each evaluation", ex);
+			eval = null;
+		}
+		_evalNode = eval;
+		_setSourceFile = setsrc;
+		_children = children;
+		_parent = parent;
+		_id = id;
+		_retctrl = retctrl;
+	}
+	/** The key of a parsed script: the script, the class loader
+	 * of the interpreter and the requesting bundle, compared by identity.
+	 */
+	private static class ScriptInfo {
+		private final String script;
+		/** The loader and the bundle, or WeakReferences to them if cached
+		 * (see {@link #weaken}). */
+		private final Object loader, bundle;
+		private final int hashCode;
+
+		private ScriptInfo(String script, ClassLoader loader, Bundle bundle) {
+			this(script, loader, bundle, script.hashCode()
+				+ 31 * System.identityHashCode(loader)
+				+ System.identityHashCode(bundle));
+		}
+		private ScriptInfo(String script, Object loader, Object bundle,
+		int hashCode) {
+			this.script = script;
+			this.loader = loader;
+			this.bundle = bundle;
+			this.hashCode = hashCode;
+		}
+		/** Returns the key to put in the cache. */
+		private ScriptInfo weaken() {
+			return new ScriptInfo(script, weakRef(loader), weakRef(bundle),
+				hashCode);
+		}
+
+		public int hashCode() {
+			return hashCode;
+		}
+		public boolean equals(Object o) {
+			if (this == o)
+				return true;
+			if (!(o instanceof ScriptInfo))
+				return false;
+
+			final ScriptInfo si = (ScriptInfo)o;
+			return hashCode == si.hashCode && script.equals(si.script)
+				&& same(loader, si.loader) && same(bundle, si.bundle);
+		}
+	}
+	/** Returns a WeakReference to the object, or null if null. */
+	private static Object weakRef(Object o) {
+		return o != null ? new WeakReference<Object>(o): null;
+	}
+	/** Returns whether the objects, or the referents of their
+	 * WeakReferences (see {@link #weakRef}), are the same.
+	 * A collected referent is the same as nothing.
+	 */
+	private static boolean same(Object a, Object b) {
+		if (a == null || b == null)
+			return a == b;
+		a = a instanceof WeakReference<?> ? ((WeakReference<?>)a).get(): a;
+		b = b instanceof WeakReference<?> ? ((WeakReference<?>)b).get(): b;
+		return a != null && a == b;
+	}
+
 	protected boolean contains(String name) {
 		try {
 			return _ip.getNameSpace().getVariable(name) != Primitive.VOID;
@@ -231,7 +643,8 @@ implements SerializableAware, HierachicalAware {
 		super.init(owner, zslang);
 
 		_ip = new bsh.Interpreter();
-		_ip.setClassLoader(Thread.currentThread().getContextClassLoader());
+		_cl = Thread.currentThread().getContextClassLoader();
+		_ip.setClassLoader(_cl);
 
 		_bshns = new GlobalNS(_ip.getClassManager(), "global");
 		_ip.setNameSpace(_bshns);
@@ -248,6 +661,8 @@ implements SerializableAware, HierachicalAware {
 		
 		_ip = null;
 		_bshns = null;
+		_cl = null;
+		_scopeIndex.clear();
 		super.destroy();
 	}
 
@@ -373,6 +788,12 @@ implements SerializableAware, HierachicalAware {
 
 		/** Deriver has to override this method. */
 		abstract protected Object getFromScope(String name);
+		/** Returns the variable defined in this namespace, or null.
+		 * Unlike {@link #getVariableImpl}, it doesn't look up the scope.
+		 */
+		/*package*/ Variable getLocalVariable(String name) throws UtilEvalError {
+			return super.getVariableImpl(name, false);
+		}
 
 		//super//
 		protected Variable getVariableImpl(String name, boolean recurse)
@@ -453,11 +874,10 @@ implements SerializableAware, HierachicalAware {
 
 				//page is the IdSpace, so it might not be curr
 				if (curr instanceof Component) {
-					for (Component c = (Component)curr; c != null; c = c.getParent()) {
-						Object val = c.getAttribute(name);
-						if (val != null || c.hasAttribute(name))
-							return val;
-					}
+					final Component c =
+						_scopeIndex.getHolder((Component)curr, null, name);
+					if (c != null)
+						return c.getAttribute(name);
 				}
 			}
 
@@ -479,11 +899,122 @@ implements SerializableAware, HierachicalAware {
 			if(clazz != null ) {
 				return clazz;
 			}
-			try {
-				clazz = Classes.forNameByThread(name);
-			} catch (ClassNotFoundException e) {
+			return findClass(name);
+		}
+		/** Returns the class found by {@link Classes#forNameByThread},
+		 * or null if not found.
+		 * BeanShell calls {@link #getClass} for every name it cannot resolve
+		 * as a variable, so what is found (or not) is remembered by this
+		 * interpreter until {@link Activator#getClassGeneration} or
+		 * the requesting bundle changes, and then by all interpreters of
+		 * the same class loader and requesting bundle (see {@link #_imports}).
+		 */
+		private Class findClass(String name) {
+			final ClassLoader cl = Thread.currentThread().getContextClassLoader();
+			if (cl != _cl) //not the loader of this interpreter (unlikely)
+				return findImport(name, cl);
+
+			final int gen = Activator.getClassGeneration();
+			final Bundle bundle = Activator.getRequestingBundle();
+			if (gen != _clsgen || bundle != _clsbundle) {
+				_classes.clear();
+				_clsgen = gen;
+				_clsbundle = bundle;
+			}
+			Object clazz = _classes.get(name);
+			if (clazz == null) {
+				clazz = findImport(name, cl);
+				_classes.put(name, clazz != null ? clazz: NOT_FOUND);
 			}
-			return clazz;
+			return clazz != NOT_FOUND ? (Class)clazz: null;
+		}
+		/** Class name to the class or {@link #NOT_FOUND}. */
+		private final Map<String, Object> _classes =
+			new ConcurrentHashMap<String, Object>();
+		/** The generation of {@link #_classes}. */
+		private volatile int _clsgen = Activator.getClassGeneration();
+		/** The requesting bundle of {@link #_classes}. */
+		private volatile Bundle _clsbundle = Activator.getRequestingBundle();
+	}
+	/** Returns the class found by {@link Classes#forNameByThread} with
+	 * the given context class loader and the requesting bundle of
+	 * the current thread, or null if not found.
+	 */
+	/*package*/ static Class findImport(String name, ClassLoader cl) {
+		final ImportInfo ii =
+			new ImportInfo(name, cl, Activator.getRequestingBundle());
+		final Object found = _imports.get(ii);
+		if (found instanceof Class)
+			return (Class)found;
+		final int gen = Activator.getClassGeneration();
+		if (found != null && ((Integer)found).intValue() == gen)
+			return null; //not found in this generation
+
+		Class clazz = null;
+		try {
+			clazz = Classes.forNameByThread(name);
+		} catch (ClassNotFoundException e) {
+		}
+		_imports.put(ii.weaken(), clazz != null ? clazz: (Object)Integer.valueOf(gen));
+		return clazz;
+	}
+	private static final Object NOT_FOUND = new Object();
+	/** The classes found by {@link Classes#forNameByThread}, shared by
+	 * the interpreters of the same class loader and requesting bundle,
+	 * which {@link Activator#forName} searches first:
+	 * {@link ImportInfo} to the class, or to the generation
+	 * ({@link Activator#getClassGeneration}) of the lookup if not found.
+	 * A class is dropped when its bundle is unresolved, updated or
+	 * uninstalled.
+	 */
+	private static final BundleClassCache<ImportInfo, Object> _imports =
+		new BundleClassCache<ImportInfo, Object>(
+			"org.zkoss.zk.scripting.bsh.imports", Library.getIntProperty(
+				"org.zkoss.zk.scripting.bsh.import.cache.maxSize", 1024),
+			4 * 60 * 60 * 1000);
+	/** The key of {@link #_imports}: the class name, the context
+	 * class loader and the requesting bundle, compared by identity.
+	 */
+	private static class ImportInfo implements BundleClassCache.Key {
+		private final String name;
+		/** The loader and the bundle, or WeakReferences to them if cached
+		 * (see {@link #weaken}). */
+		private final Object loader, bundle;
+		private final int hashCode;
+
+		private ImportInfo(String name, ClassLoader loader, Bundle bundle) {
+			this(name, loader, bundle, name.hashCode()
+				+ 31 * System.identityHashCode(loader)
+				+ System.identityHashCode(bundle));
+		}
+		private ImportInfo(String name, Object loader, Object bundle,
+		int hashCode) {
+			this.name = name;
+			this.loader = loader;
+			this.bundle = bundle;
+			this.hashCode = hashCode;
+		}
+		/** Returns the key to put in the cache. */
+		private ImportInfo weaken() {
+			return new ImportInfo(name, weakRef(loader), weakRef(bundle),
+				hashCode);
+		}
+
+		public Class<?>[] getClasses() {
+			return new Class<?>[0]; //the class found is the value
+		}
+		public int hashCode() {
+			return hashCode;
+		}
+		public boolean equals(Object o) {
+			if (this == o)
+				return true;
+			if (!(o instanceof ImportInfo))
+				return false;
+
+			final ImportInfo ii = (ImportInfo)o;
+			return hashCode == ii.hashCode && name.equals(ii.name)
+				&& same(loader, ii.loader) && same(bundle, ii.bundle);
 		}
 	}
 	/** The per-IdSpace NameSpace. */
@@ -518,12 +1049,10 @@ implements SerializableAware, HierachicalAware {
 
 				//_scope is the nearest IdSpace so it might not be curr
 				if (curr != _scope && curr instanceof Component) {
-					for (Component c = (Component)curr;
-					c != null && c != _scope; c = c.getParent()) {
-						Object val = c.getAttribute(name);
-						if (val != null || c.hasAttribute(name))
-							return val;
-					}
+					final Component c =
+						ip._scopeIndex.getHolder((Component)curr, _scope, name);
+					if (c != null)
+						return c.getAttribute(name);
 				}
 			}
 
@@ -535,6 +1064,181 @@ implements SerializableAware, HierachicalAware {
 				//No need to invoke getXelVariable since it is not 'recurse'
 		}
 	}
+	/** An index of the attribute names of the components, from a component
+	 * up to the root, so looking up a name doesn't ask every ancestor.
+	 * The index of a component (a chain) is built when a name is looked up
+	 * from it, and it registers itself as a scope listener of the components
+	 * of the chain. Since it keeps the component holding a name, not the
+	 * value, only adding or removing an attribute and changing a parent
+	 * invalidate the chains containing the component changed.
+	 * A chain evicted or invalidated stops listening to its components,
+	 * unless another chain contains them, so a detached tree isn't kept.
+	 *
+	 * <p>The chains are built only for the components derived from
+	 * {@link AbstractComponent}, which notify the scope listeners;
+	 * otherwise the ancestors are asked as before. The number of chains
+	 * is bounded by the library property
+	 * <code>org.zkoss.zk.scripting.bsh.scopeIndex.maxSize</code>
+	 * (default 256).
+	 */
+	/*package*/ static class ScopeIndex implements ScopeListener {
+		private static final int MAX_SIZE = Library.getIntProperty(
+			"org.zkoss.zk.scripting.bsh.scopeIndex.maxSize", 256);
+		/** Component to its chain, least recently used first. */
+		private final Map<Component, Chain> _chains =
+			new LinkedHashMap<Component, Chain>(16, 0.75f, true) {
+				protected boolean removeEldestEntry(Map.Entry<Component, Chain> eldest) {
+					if (size() <= MAX_SIZE)
+						return false;
+					release(eldest.getValue());
+					return true;
+				}
+			};
+		/** The components this index listens to, to the chains
+		 * containing them. */
+		private final Map<Component, List<Chain>> _listened =
+			new IdentityHashMap<Component, List<Chain>>();
+
+		/** Returns the nearest component holding the attribute, from comp
+		 * up to (but excluding) stop, or null if none of them has it.
+		 * @param stop the ancestor to stop at, or null to look up to the root
+		 */
+		/*package*/ Component getHolder(Component comp, Scope stop, String name) {
+			Chain chain;
+			synchronized (this) {
+				chain = _chains.get(comp);
+			}
+			if (chain == null) {
+				chain = newChain(comp);
+				if (chain == null) { //not indexable
+					for (Component c = comp; c != null && c != stop; c = c.getParent())
+						if (c.getAttribute(name) != null || c.hasAttribute(name))
+							return c;
+					return null;
+				}
+			}
+
+			final Integer j = chain.names.get(name);
+			if (j == null)
+				return null;
+			if (stop != null) {
+				final Integer k = chain.positions.get(stop);
+				if (k != null && k.intValue() <= j.intValue())
+					return null; //held by stop or above
+			}
+			return chain.comps[j.intValue()];
+		}
+		private Chain newChain(Component comp) {
+			final List<Component> comps = new LinkedList<Component>();
+			for (Component c = comp; c != null; c = c.getParent()) {
+				if (!(c instanceof AbstractComponent))
+					return null;
+				comps.add(c);
+			}
+
+			final Chain chain = new Chain(comps);
+			synchronized (this) {
+				for (int j = 0; j < chain.comps.length; ++j) {
+					final Component c = chain.comps[j];
+					List<Chain> chains = _listened.get(c);
+					if (chains == null) {
+						_listened.put(c, chains = new LinkedList<Chain>());
+						c.addScopeListener(this);
+					}
+					chains.add(chain);
+				}
+				//a change from now on invalidates the chain; check before
+				for (int j = 0; j < chain.comps.length; ++j) {
+					final Component c = chain.comps[j];
+					if (c.getParent() != (j + 1 < chain.comps.length ?
+					chain.comps[j + 1]: null)) { //changed meanwhile
+						release(chain);
+						return null;
+					}
+					chain.positions.put(c, Integer.valueOf(j));
+					for (Iterator it = c.getAttributes().keySet().iterator();
+					it.hasNext();) {
+						final String nm = (String)it.next();
+						if (!chain.names.containsKey(nm))
+							chain.names.put(nm, Integer.valueOf(j));
+					}
+				}
+				final Chain old = _chains.put(comp, chain);
+				if (old != null)
+					release(old);
+			}
+			return chain;
+		}
+		/** Stops listening to the components of the chain that no other
+		 * chain contains. */
+		private void release(Chain chain) {
+			for (int j = 0; j < chain.comps.length; ++j) {
+				final Component c = chain.comps[j];
+				final List<Chain> chains = _listened.get(c);
+				if (chains != null && chains.remove(chain) && chains.isEmpty()) {
+					_listened.remove(c);
+					c.removeScopeListener(this);
+				}
+			}
+		}
+		/** Drops the chains containing the component. */
+		private synchronized void invalidate(Scope scope) {
+			final List<Chain> chains = _listened.get(scope);
+			if (chains != null)
+				for (Iterator<Chain> it = new ArrayList<Chain>(chains).iterator();
+				it.hasNext();) {
+					final Chain chain = it.next();
+					final Component owner = chain.comps[0];
+					if (_chains.get(owner) == chain)
+						_chains.remove(owner);
+					release(chain);
+				}
+		}
+		private synchronized void clear() {
+			_chains.clear();
+			for (Iterator<Component> it = _listened.keySet().iterator(); it.hasNext();)
+				it.next().removeScopeListener(this);
+			_listened.clear();
+		}
+		/** Returns the number of chains. */
+		/*package*/ synchronized int size() {
+			return _chains.size();
+		}
+		/** Returns the number of components listened to. */
+		/*package*/ synchronized int getListenedCount() {
+			return _listened.size();
+		}
+
+		public void attributeAdded(Scope scope, String name, Object value) {
+			invalidate(scope);
+		}
+		public void attributeReplaced(Scope scope, String name, Object value) {
+			//the holder is the same
+		}
+		public void attributeRemoved(Scope scope, String name) {
+			invalidate(scope);
+		}
+		public void parentChanged(Scope scope, Scope newparent) {
+			invalidate(scope);
+		}
+		public void idSpaceChanged(Scope scope, IdSpace newIdSpace) {
+			invalidate(scope);
+		}
+	}
+	/** The attribute names of the components from a component up to the root. */
+	private static class Chain {
+		/** The component and its ancestors. */
+		private final Component[] comps;
+		/** Component to its index in {@link #comps}. */
+		private final Map<Component, Integer> positions =
+			new IdentityHashMap<Component, Integer>();
+		/** Attribute name to the index of the nearest component holding it. */
+		private final Map<String, Integer> names = new HashMap<String, Integer>();
+
+		private Chain(List<Component> comps) {
+			this.comps = comps.toArray(new Component[comps.size()]);
+		}
+	}
 	private static class NSCListener implements ScopeListener {
 		private final NS _bshns;
 		private NSCListener(NS bshns) {
@@ -571,22 +1275,54 @@ implements SerializableAware, HierachicalAware {
 		read(_bshns, s);
 	}
 
+	/** Writes the namespace. The variables declared transient are skipped
+	 * in both formats.
+	 *
+	 * <p>If the library property
+	 * <code>org.zkoss.zk.scripting.bsh.serialization.compact</code>
+	 * is true, it is written in the compact format, which
+	 * {@link #read(NameSpace, ObjectInputStream)} recognizes by the leading
+	 * {@link #COMPACT} marker. It is false by default, since a node running
+	 * a previous version can't read the compact format: enable it once
+	 * all the nodes sharing the sessions read it.
+	 * <ol>
+	 * <li>The variables, each as a tag, the name and the value.
+	 * A string, a class, a number, a boolean or a character (or a BeanShell
+	 * Primitive of them) is written as primitive data, and only other
+	 * values are serialized as objects.</li>
+	 * <li>The methods, as in the default format.</li>
+	 * <li>The number of imported classes and packages, and their names.</li>
+	 * </ol>
+	 * The strings (names, string values and class names) are written once:
+	 * then they are referenced by their position in a dictionary,
+	 * which gives the reader a single instance of each.
+	 */
 	/*package*/ static void write(NameSpace ns, ObjectOutputStream s, Filter filter)
 	throws IOException {
+		final boolean compact = isCompact();
+		final Map<String, Integer> dict =
+			compact ? new HashMap<String, Integer>(): null;
+		if (compact)
+			s.writeObject(COMPACT);
+
 		//1. variables
 		final String[] vars = ns.getVariableNames();
 		for (int j = vars != null ? vars.length: 0; --j >= 0;) {
 			final String nm = vars[j];
 			if (nm != null && !"bsh".equals(nm)
-			&& isVariableSerializable(nm)) {
+			&& isVariableSerializable(nm) && !isTransient(ns, nm)) {
 				try {
 					final Object val = ns.getVariable(nm, false);
 					if ((val == null || (val instanceof Serializable)
 						|| (val instanceof Externalizable))
 					&& !(val instanceof Component)
 					&& (filter == null || filter.accept(nm, val))) {
-						s.writeObject(nm);
-						s.writeObject(val);
+						if (compact) {
+							writeValue(s, dict, val, nm);
+						} else {
+							s.writeObject(nm);
+							s.writeObject(val);
+						}
 					}
 				} catch (IOException ex) {
 					throw ex;
@@ -595,7 +1331,8 @@ implements SerializableAware, HierachicalAware {
 				}
 			}
 		}
-		s.writeObject(null); //denote end-of-vars
+		if (compact) s.writeByte(V_END);
+		else s.writeObject(null); //denote end-of-vars
 
 		//2. methods
 		if (shallSerializeMethod()) {
@@ -631,51 +1368,49 @@ implements SerializableAware, HierachicalAware {
 		s.writeObject(null); //denote end-of-mtds
 
 		//3. imported class
+		final List<String> clses = new LinkedList<String>();
 		Field f = null;
 		boolean acs = false;
 		try {
 			f = Classes.getAnyField(NameSpace.class, "importedClasses");
 			acs = f.isAccessible();
 			Fields.setAccessible(f, true);
-			final Map clses = (Map)f.get(ns);
-			if (clses != null)
-				for (Iterator it = clses.values().iterator(); it.hasNext();) {
+			final Map m = (Map)f.get(ns);
+			if (m != null)
+				for (Iterator it = m.values().iterator(); it.hasNext();) {
 					final String clsnm = (String)it.next();
 					if (!clsnm.startsWith("bsh."))
-						s.writeObject(clsnm);
+						clses.add(clsnm);
 				}
-		} catch (IOException ex) {
-			throw ex;
 		} catch (Throwable ex) {
 			log.warning("Ignored failure to write imported classes", ex);
 		} finally {
 			if (f != null) Fields.setAccessible(f, acs);
 		}
-		s.writeObject(null); //denote end-of-cls
+		writeNames(s, dict, clses);
 
 		//4. imported package
+		final List<String> pkgs = new LinkedList<String>();
 		f = null;
 		acs = false;
 		try {
 			f = Classes.getAnyField(NameSpace.class, "importedPackages");
 			acs = f.isAccessible();
 			Fields.setAccessible(f, true);
-			final Collection pkgs = (Collection)f.get(ns);
-			if (pkgs != null)
-				for (Iterator it = pkgs.iterator(); it.hasNext();) {
+			final Collection c = (Collection)f.get(ns);
+			if (c != null)
+				for (Iterator it = c.iterator(); it.hasNext();) {
 					final String pkgnm = (String)it.next();
 					if (!pkgnm.startsWith("java.awt")
 					&& !pkgnm.startsWith("javax.swing"))
-						s.writeObject(pkgnm);
+						pkgs.add(pkgnm);
 				}
-		} catch (IOException ex) {
-			throw ex;
 		} catch (Throwable ex) {
 			log.warning("Ignored failure to write imported packages", ex);
 		} finally {
 			if (f != null) Fields.setAccessible(f, acs);
 		}
-		s.writeObject(null); //denote end-of-cls
+		writeNames(s, dict, pkgs);
 	}
 	private static boolean isVariableSerializable(String name) {
 		//we have to filter out them since BeanShell will store variables
@@ -697,39 +1432,137 @@ implements SerializableAware, HierachicalAware {
 		final String s = Library.getProperty("org.zkoss.zk.scripting.bsh.method.serializable");
 		return s == null || !"false".equals(s);
 	}
+	private static boolean isCompact() {
+		return "true".equals(Library.getProperty("org.zkoss.zk.scripting.bsh.serialization.compact"));
+	}
+	private static boolean isTransient(NameSpace ns, String name) {
+		if (ns instanceof AbstractNS) {
+			try {
+				final Variable var = ((AbstractNS)ns).getLocalVariable(name);
+				return var != null && var.hasModifier("transient");
+			} catch (UtilEvalError ex) { //ignore
+			}
+		}
+		return false;
+	}
+
+	/** The marker of the compact format. It is not a valid variable name,
+	 * which starts the default format. */
+	private static final String COMPACT = "\u0000bsh1";
+	/** The tags of the values in the compact format. */
+	private static final int V_END = 0, V_NULL = 1, V_STRING = 2,
+		V_TRUE = 3, V_FALSE = 4, V_INT = 5, V_LONG = 6, V_DOUBLE = 7,
+		V_FLOAT = 8, V_SHORT = 9, V_BYTE = 10, V_CHAR = 11, V_CLASS = 12,
+		V_PRIMITIVE_NULL = 13, V_OBJECT = 14;
+	/** Or'ed with the tag of a value wrapped by a BeanShell Primitive. */
+	private static final int V_PRIMITIVE = 0x40;
+	/** The longest string value written as primitive data; a longer one
+	 * may not fit in writeUTF. */
+	private static final int MAX_UTF = 65535 / 3;
+
+	private static void writeValue(ObjectOutputStream s,
+	Map<String, Integer> dict, Object val, String nm) throws IOException {
+		int prim = 0;
+		if (val == Primitive.NULL) {
+			s.writeByte(V_PRIMITIVE_NULL);
+			writeString(s, dict, nm);
+			return;
+		}
+		if (val instanceof Primitive) {
+			final Object v = ((Primitive)val).getValue();
+			if (v != null && Primitive.isWrapperType(v.getClass())) {
+				val = v;
+				prim = V_PRIMITIVE;
+			}
+		}
+
+		final int tag =
+			val == null ? V_NULL:
+			val instanceof String && ((String)val).length() <= MAX_UTF ?
+				V_STRING:
+			val instanceof Boolean ?
+				((Boolean)val).booleanValue() ? V_TRUE: V_FALSE:
+			val instanceof Integer ? V_INT:
+			val instanceof Long ? V_LONG:
+			val instanceof Double ? V_DOUBLE:
+			val instanceof Float ? V_FLOAT:
+			val instanceof Short ? V_SHORT:
+			val instanceof Byte ? V_BYTE:
+			val instanceof Character ? V_CHAR:
+			val instanceof Class ? V_CLASS: V_OBJECT;
+		s.writeByte(tag | prim);
+		writeString(s, dict, nm);
+		switch (tag) {
+		case V_STRING: writeString(s, dict, (String)val); break;
+		case V_INT: s.writeInt(((Integer)val).intValue()); break;
+		case V_LONG: s.writeLong(((Long)val).longValue()); break;
+		case V_DOUBLE: s.writeDouble(((Double)val).doubleValue()); break;
+		case V_FLOAT: s.writeFloat(((Float)val).floatValue()); break;
+		case V_SHORT: s.writeShort(((Short)val).shortValue()); break;
+		case V_BYTE: s.writeByte(((Byte)val).byteValue()); break;
+		case V_CHAR: s.writeChar(((Character)val).charValue()); break;
+		case V_CLASS: writeString(s, dict, ((Class)val).getName()); break;
+		case V_OBJECT: s.writeObject(val); break;
+		}
+	}
+	/** Writes the names, as objects ended by null in the default format
+	 * (dict is null), and as their number and the strings in the compact one.
+	 */
+	private static void writeNames(ObjectOutputStream s,
+	Map<String, Integer> dict, List<String> names) throws IOException {
+		if (dict != null) {
+			writeCount(s, names.size());
+			for (String nm: names)
+				writeString(s, dict, nm);
+		} else {
+			for (String nm: names)
+				s.writeObject(nm);
+			s.writeObject(null); //denote end-of-names
+		}
+	}
+	/** Writes a string, or its position in the dictionary if written before. */
+	private static void writeString(ObjectOutputStream s,
+	Map<String, Integer> dict, String str) throws IOException {
+		final Integer j = dict.get(str);
+		if (j != null) {
+			writeCount(s, j.intValue() + 1);
+		} else {
+			writeCount(s, 0);
+			s.writeUTF(str);
+			dict.put(str, Integer.valueOf(dict.size()));
+		}
+	}
+	/** Writes a non-negative number in 7-bit groups, the lowest first. */
+	private static void writeCount(ObjectOutputStream s, int n)
+	throws IOException {
+		for (; n >= 0x80; n >>>= 7)
+			s.writeByte((n & 0x7f) | 0x80);
+		s.writeByte(n);
+	}
 
 	/*package*/ static void read(NameSpace ns, ObjectInputStream s)
 	throws IOException {
-		for (;;) {
-			try {
-				final String nm = (String)s.readObject();
-				if (nm == null) break; //no more
+		Object first;
+		try {
+			first = s.readObject();
+		} catch (ClassNotFoundException ex) { //not possible (a string or null)
+			throw new IOException(ex.getMessage());
+		}
+		if (COMPACT.equals(first)) {
+			readCompact(ns, s);
+			return;
+		}
 
+		for (String nm = (String)first; nm != null;) {
+			try {
 				ns.setVariable(nm, s.readObject(), false);
 			} catch (IOException ex) {
 				throw ex;
 			} catch (Throwable ex) {
 				log.warning("Ignored failure to read", ex);
 			}
-		}
-
-		for (;;) {
 			try {
-				final BshMethod mtd = (BshMethod)s.readObject();
-				if (mtd == null) break; //no more
-
-				//fix declaringNameSpace
-				Field f = null;
-				boolean acs = false;
-				try {
-					f = Classes.getAnyField(BshMethod.class, "declaringNameSpace");
-					acs = f.isAccessible();
-					Fields.setAccessible(f, true);
-					f.set(mtd, ns);				
-				} finally {
-					if (f != null) Fields.setAccessible(f, acs);
-				}
-				ns.setMethod(mtd.getName(), mtd);
+				nm = (String)s.readObject();
 			} catch (IOException ex) {
 				throw ex;
 			} catch (Throwable ex) {
@@ -737,6 +1570,8 @@ implements SerializableAware, HierachicalAware {
 			}
 		}
 
+		readMethods(ns, s);
+
 		for (;;) {
 			try {
 				final String nm = (String)s.readObject();
@@ -763,6 +1598,111 @@ implements SerializableAware, HierachicalAware {
 			}
 		}
 	}
+	/** Reads the namespace written in the compact format
+	 * (see {@link #write(NameSpace, ObjectOutputStream, Filter)}).
+	 */
+	private static void readCompact(NameSpace ns, ObjectInputStream s)
+	throws IOException {
+		final List<String> dict = new ArrayList<String>();
+		for (int tag; (tag = s.readUnsignedByte()) != V_END;) {
+			final String nm = readString(s, dict);
+			try {
+				final Object val = readValue(s, dict, tag);
+				if (val != null || tag == V_NULL)
+					ns.setVariable(nm, val, false);
+			} catch (IOException ex) {
+				throw ex;
+			} catch (Throwable ex) {
+				log.warning("Ignored failure to read "+nm, ex);
+			}
+		}
+
+		readMethods(ns, s);
+
+		for (int j = readCount(s); --j >= 0;) {
+			final String nm = readString(s, dict);
+			try {
+				ns.importClass(nm);
+			} catch (Throwable ex) {
+				log.warning("Ignored failure to read", ex);
+			}
+		}
+		for (int j = readCount(s); --j >= 0;) {
+			final String nm = readString(s, dict);
+			try {
+				ns.importPackage(nm);
+			} catch (Throwable ex) {
+				log.warning("Ignored failure to read", ex);
+			}
+		}
+	}
+	private static Object readValue(ObjectInputStream s, List<String> dict,
+	int tag) throws IOException, ClassNotFoundException {
+		final Object val;
+		switch (tag & ~V_PRIMITIVE) {
+		case V_NULL: return null;
+		case V_PRIMITIVE_NULL: return Primitive.NULL;
+		case V_STRING: return readString(s, dict);
+		case V_TRUE: val = Boolean.TRUE; break;
+		case V_FALSE: val = Boolean.FALSE; break;
+		case V_INT: val = Integer.valueOf(s.readInt()); break;
+		case V_LONG: val = Long.valueOf(s.readLong()); break;
+		case V_DOUBLE: val = Double.valueOf(s.readDouble()); break;
+		case V_FLOAT: val = Float.valueOf(s.readFloat()); break;
+		case V_SHORT: val = Short.valueOf(s.readShort()); break;
+		case V_BYTE: val = Byte.valueOf(s.readByte()); break;
+		case V_CHAR: val = Character.valueOf(s.readChar()); break;
+		case V_CLASS: return Classes.forNameByThread(readString(s, dict));
+		case V_OBJECT: return s.readObject();
+		default:
+			throw new IOException("Unknown tag "+tag);
+		}
+		return (tag & V_PRIMITIVE) != 0 ? new Primitive(val): val;
+	}
+	private static String readString(ObjectInputStream s, List<String> dict)
+	throws IOException {
+		final int j = readCount(s);
+		if (j > 0)
+			return dict.get(j - 1);
+		final String str = s.readUTF();
+		dict.add(str);
+		return str;
+	}
+	private static int readCount(ObjectInputStream s) throws IOException {
+		int n = 0;
+		for (int shift = 0;; shift += 7) {
+			final int b = s.readUnsignedByte();
+			n |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				return n;
+		}
+	}
+	private static void readMethods(NameSpace ns, ObjectInputStream s)
+	throws IOException {
+		for (;;) {
+			try {
+				final BshMethod mtd = (BshMethod)s.readObject();
+				if (mtd == null) break; //no more
+
+				//fix declaringNameSpace
+				Field f = null;
+				boolean acs = false;
+				try {
+					f = Classes.getAnyField(BshMethod.class, "declaringNameSpace");
+					acs = f.isAccessible();
+					Fields.setAccessible(f, true);
+					f.set(mtd, ns);				
+				} finally {
+					if (f != null) Fields.setAccessible(f, acs);
+				}
+				ns.setMethod(mtd.getName(), mtd);
+			} catch (IOException ex) {
+				throw ex;
+			} catch (Throwable ex) {
+				log.warning("Ignored failure to read", ex);
+			}
+		}
+	}
 
 	private class BSHFunction implements Function {
 		private final bsh.BshMethod _method;
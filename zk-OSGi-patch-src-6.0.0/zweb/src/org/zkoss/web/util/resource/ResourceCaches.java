@@ -22,7 +22,10 @@ import java.net.URL;
 
 import javax.servlet.ServletContext;
 
+import org.zkoss.lang.Library;
 import org.zkoss.lang.SystemException;
+import org.zkoss.util.Cache;
+import org.zkoss.util.MultiCache;
 import org.zkoss.util.logging.Log;
 import org.zkoss.web.servlet.Servlets;
 
@@ -75,79 +78,179 @@ public class ResourceCaches {
 			}else path = '/' + path;
 		}
 
-		if (url == null) {
-			if (path.startsWith("/~")) {
-				final ServletContext ctx0 = ctx;
-				final String path0 = path;
-				final int j = path.indexOf('/', 2);
-				final String ctxpath;
-				if (j >= 0) {
-					ctxpath = "/" + path.substring(2, j);
-					path = path.substring(j);
-				} else {
-					ctxpath = "/" + path.substring(2);
-					path = "/";
+		if (url != null)
+			return load(cache, path, url, extra);
+
+		//Skip the probes if we know which one resolves the path
+		final Cache<String, Resolution> rsvs = getResolutions(cache, ctx);
+		if (rsvs != null) {
+			final Resolution rsv = rsvs.get(path);
+			if (rsv != null) {
+				if (rsv.expires > System.currentTimeMillis()) {
+					if (rsv.src == null)
+						return null; //not found
+					final V resource = load(cache, rsv.path, rsv.src, extra);
+					if (resource != null)
+						return resource;
 				}
+				rsvs.remove(path); //resolve again
+			}
+		}
+		return resolve(cache, ctx, path, extra, rsvs);
+	}
+	/** Probes the extendlet context, the real path and the URL of the
+	 * resource, and records which one resolves the path (if rsvs is not null).
+	 */
+	private static <V>
+	V resolve(ResourceCache<V> cache, ServletContext ctx, final String path0,
+	Object extra, Cache<String, Resolution> rsvs) {
+		String path = path0;
+		if (path.startsWith("/~")) {
+			final ServletContext ctx0 = ctx;
+			final int j = path.indexOf('/', 2);
+			final String ctxpath;
+			if (j >= 0) {
+				ctxpath = "/" + path.substring(2, j);
+				path = path.substring(j);
+			} else {
+				ctxpath = "/" + path.substring(2);
+				path = "/";
+			}
 
-				final ExtendletContext extctx =
-					Servlets.getExtendletContext(ctx, ctxpath.substring(1));
-				if (extctx != null) {
-					url = extctx.getResource(path);
-//					if (log.debugable()) log.debug("Resolving "+path0+" to "+url);
-					if (url == null)
-						return null;
-					try {
-						return cache.get(new ResourceInfo(path, url, extra));
-					} catch (Throwable ex) {
-						final IOException ioex = getIOException(ex);
-						if (ioex == null)
-							throw SystemException.Aide.wrap(ex);
-						log.warningBriefly("Unable to load "+url, ioex);
-					}
+			final ExtendletContext extctx =
+				Servlets.getExtendletContext(ctx, ctxpath.substring(1));
+			if (extctx != null) {
+				final URL url = extctx.getResource(path);
+//				if (log.debugable()) log.debug("Resolving "+path0+" to "+url);
+				if (url == null) {
+					record(cache, rsvs, path0, path, null);
 					return null;
 				}
+				final V resource = load(cache, path, url, extra);
+				if (resource != null)
+					record(cache, rsvs, path0, path, url);
+				return resource;
+			}
 
-				ctx = ctx.getContext(ctxpath);
-				if (ctx == null) { //failed
-//					if (log.debugable()) log.debug("Context not found: "+ctxpath);
-					ctx = ctx0; path = path0;//restore
-				}
+			ctx = ctx.getContext(ctxpath);
+			if (ctx == null) { //failed
+//				if (log.debugable()) log.debug("Context not found: "+ctxpath);
+				ctx = ctx0; path = path0;//restore
 			}
+		}
 
-			final String flnm = ctx.getRealPath(path);
-			// Mirko Bernardoni: Patch for using in OSGi enviroment 
-			// Lines 121,123,131-133
-			if (flnm != null) {
-				V resource = null;
-				try {
-					resource =  cache.get(new ResourceInfo(path, new File(flnm), extra));
-						//it is loader's job to check the existence
-				} catch (Throwable ex) {
-					final IOException ioex = getIOException(ex);
-					if (ioex == null)
-						throw SystemException.Aide.wrap(ex);
-					log.warningBriefly("Unable to load "+flnm, ioex);
-				}
-				if (resource != null) {
-					return resource;
-				}
+		final String flnm = ctx.getRealPath(path);
+		// Mirko Bernardoni: Patch for using in OSGi enviroment 
+		// Try the URL if the file is not found
+		if (flnm != null) {
+			final File file = new File(flnm);
+			final V resource = load(cache, path, file, extra);
+				//it is loader's job to check the existence
+			if (resource != null) {
+				record(cache, rsvs, path0, path, file);
+				return resource;
 			}
 		}
 
 		//try url because some server uses JAR format
+		final URL url;
 		try {
-			if (url == null)
-				url = ctx.getResource(path);
-			if (url != null)
-				return cache.get(new ResourceInfo(path, url, extra));
+			url = ctx.getResource(path);
 		} catch (Throwable ex) {
 			final IOException ioex = getIOException(ex);
 			if (ioex == null)
 				throw SystemException.Aide.wrap(ex);
 			log.warningBriefly("Unable to load "+path, ioex);
+			return null;
+		}
+		if (url == null) {
+			record(cache, rsvs, path0, path, null);
+			return null;
+		}
+		final V resource = load(cache, path, url, extra);
+		if (resource != null)
+			record(cache, rsvs, path0, path, url);
+		return resource;
+	}
+	/** Loads the resource from a file or URL, or returns null if not found
+	 * or failed to load.
+	 */
+	private static <V>
+	V load(ResourceCache<V> cache, String path, Object src, Object extra) {
+		try {
+			return cache.get(src instanceof File ?
+				new ResourceInfo(path, (File)src, extra):
+				new ResourceInfo(path, (URL)src, extra));
+		} catch (Throwable ex) {
+			final IOException ioex = getIOException(ex);
+			if (ioex == null)
+				throw SystemException.Aide.wrap(ex);
+			log.warningBriefly("Unable to load "+src, ioex);
 		}
 		return null;
 	}
+
+	/** Returns the resolutions of the paths of the given context,
+	 * or null if the cache checks the resources at every access.
+	 */
+	@SuppressWarnings("unchecked")
+	private static Cache<String, Resolution>
+	getResolutions(ResourceCache<?> cache, ServletContext ctx) {
+		if (cache.getCheckPeriod() == 0)
+			return null;
+
+		Cache<String, Resolution> rsvs =
+			(Cache<String, Resolution>)ctx.getAttribute(ATTR_RESOLUTIONS);
+		if (rsvs == null) {
+			final int maxSize = Library.getIntProperty(
+				"org.zkoss.web.util.resource.ResourceCaches.resolution.maxSize",
+				1024);
+			rsvs = new MultiCache<String, Resolution>(
+				8, Math.max(1, maxSize / 8), Integer.MAX_VALUE);
+				//the size is of each of the 8 internal caches
+			ctx.setAttribute(ATTR_RESOLUTIONS, rsvs);
+				//no lock: the worst case is that a few are resolved again
+		}
+		return rsvs;
+	}
+	/** Records which file or URL (null if not found) resolves a path.
+	 * It is kept for the check period of the cache, so a resource
+	 * added or removed is found as soon as a modified one is.
+	 * If the cache never checks the resources (a negative period),
+	 * a path not found is still resolved again after {@link #MISS_PERIOD},
+	 * so a resource deployed later is found.
+	 */
+	private static void record(ResourceCache<?> cache,
+	Cache<String, Resolution> rsvs, String path0, String path, Object src) {
+		if (rsvs != null) {
+			final int period = cache.getCheckPeriod();
+			rsvs.put(path0, new Resolution(path, src,
+				period > 0 ? System.currentTimeMillis() + period:
+				src == null ? System.currentTimeMillis() + MISS_PERIOD:
+					Long.MAX_VALUE));
+		}
+	}
+	/** The milliseconds a path not found is remembered if the cache
+	 * never checks the resources. */
+	private static final int MISS_PERIOD = 5000;
+
+	private static final String ATTR_RESOLUTIONS =
+		"org.zkoss.web.util.resource.ResourceCaches.resolutions";
+
+	/** The file or URL that resolved a path. */
+	private static class Resolution {
+		/** The path in the context that resolved it. */
+		private final String path;
+		/** The file or URL, or null if not found. */
+		private final Object src;
+		private final long expires;
+
+		private Resolution(String path, Object src, long expires) {
+			this.path = path;
+			this.src = src;
+			this.expires = expires;
+		}
+	}
 	//don't eat exceptions other than IOException
 	private static IOException getIOException(Throwable ex) {
 		for (; ex != null; ex = ex.getCause())